@@ -2,13 +2,17 @@ package com.network.p2p;
 
 import com.formdev.flatlaf.FlatDarkLaf;
 import com.network.p2p.gui.MainFrame;
+import com.network.p2p.managers.DownloadManager;
 import com.network.p2p.managers.FileManager;
 import com.network.p2p.managers.PeerManager;
+import com.network.p2p.network.ControlServer;
+import com.network.p2p.network.DhtNode;
 import com.network.p2p.network.DiscoveryService;
 import com.network.p2p.network.FileServer;
 
 import javax.swing.SwingUtilities;
 import java.io.File;
+import java.util.concurrent.CountDownLatch;
 
 public class P2PVideoApp {
     public static void main(String[] args) {
@@ -44,10 +48,21 @@ public class P2PVideoApp {
             PeerManager peerManager = new PeerManager();
             DiscoveryService discoveryService = new DiscoveryService(peerManager);
             FileServer fileServer = new FileServer(fileManager);
+            DownloadManager downloadManager = new DownloadManager();
 
             // Wire dependencies
             peerManager.setDiscoveryService(discoveryService);
             peerManager.setFileManager(fileManager);
+            fileServer.setPeerManager(peerManager);
+            fileServer.setDownloadManager(downloadManager);
+            downloadManager.setFileManager(fileManager);
+            downloadManager.setDiscoveryService(discoveryService);
+            downloadManager.setDownloadCompleteListener((fileName, hash) ->
+                    System.out.println("✓ Download complete: " + fileName + " [" + hash + "]"));
+            downloadManager.setVerificationListener((fileName, hash, outcome, badChunks) -> {
+                if (outcome != DownloadManager.VerificationOutcome.VERIFIED)
+                    System.err.println("✗ Verification of " + fileName + ": " + outcome + " (" + badChunks + " chunks)");
+            });
 
             // Set directories from environment or defaults
             String videoDir = System.getenv("VIDEO_DIR");
@@ -101,6 +116,21 @@ public class P2PVideoApp {
             discoveryService.start();
             System.out.println("✓ Discovery Service started");
             System.out.println("✓ Peer ID: " + discoveryService.getPeerId());
+
+            DhtNode dhtNode = DhtNode.fromEnvironment(discoveryService.getPeerId());
+            if (dhtNode != null) {
+                dhtNode.setLocalKeys(fileManager::getSharedHashes, fileServerPort);
+                peerManager.setDhtNode(dhtNode);
+                downloadManager.setDhtNode(dhtNode);
+                dhtNode.start();
+                System.out.println("✓ DHT node started on UDP port: " + dhtNode.getPort());
+            }
+
+            ControlServer controlServer = ControlServer.fromEnvironment(peerManager, fileManager, downloadManager, discoveryService);
+            if (controlServer != null) {
+                controlServer.start();
+                System.out.println("✓ Control API started on port: " + controlServer.getPort());
+            }
             System.out.println();
 
             System.out.println("Headless peer is running. Shared files:");
@@ -116,17 +146,23 @@ public class P2PVideoApp {
             System.out.println("Press Ctrl+C to stop the peer.");
 
             // Add shutdown hook for graceful shutdown
+            CountDownLatch stopped = new CountDownLatch(1);
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.out.println("\nShutting down headless peer...");
+                if (controlServer != null)
+                    controlServer.stop();
+                for (String hash : downloadManager.getActiveDownloads().keySet())
+                    downloadManager.cancelDownload(hash);
                 discoveryService.stop();
                 fileServer.stop();
+                if (dhtNode != null)
+                    dhtNode.stop();
                 System.out.println("Goodbye!");
+                stopped.countDown();
             }));
 
-            // Keep alive
-            while (true) {
-                Thread.sleep(1000);
-            }
+            // Services run on their own threads; the main thread just waits for shutdown
+            stopped.await();
 
         } catch (Exception e) {
             System.err.println("Error running headless peer: " + e.getMessage());
@@ -0,0 +1,70 @@
+package com.network.p2p.gui;
+
+import com.network.p2p.managers.DownloadManager.DownloadStatus;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rows of the per-download status table, replaced wholesale from a DownloadManager snapshot on
+ * each UI refresh.
+ */
+public class DownloadTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    static final int PROGRESS_COLUMN = 1;
+    private static final int CHUNK_KB = 256;
+    private static final String[] COLUMNS = { "File", "Progress", "Chunks", "Buffered Ahead", "Rate", "Peers", "State" };
+
+    private List<DownloadStatus> rows = new ArrayList<>();
+
+    public void setRows(List<DownloadStatus> rows) {
+        this.rows = rows;
+        fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == PROGRESS_COLUMN ? Integer.class : String.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        DownloadStatus status = rows.get(row);
+        switch (column) {
+            case 0:
+                return status.fileName;
+            case PROGRESS_COLUMN:
+                return (int) status.getProgress();
+            case 2:
+                return status.completedChunks + " / " + status.totalChunks;
+            case 3:
+                return (status.playableChunks * CHUNK_KB) + " KB";
+            case 4:
+                return String.format("%.0f KB/s", status.bytesPerSecond / 1024);
+            case 5:
+                return Integer.toString(status.sources);
+            default:
+                if (status.verifying)
+                    return "Verifying";
+                if (status.complete)
+                    return "Complete";
+                return status.watchOnly ? "Streaming (watch only)" : "Downloading";
+        }
+    }
+}
@@ -16,17 +16,32 @@ public class MainFrame extends JFrame {
     private FileManager fileManager;
     private com.network.p2p.managers.DownloadManager downloadManager;
     private com.network.p2p.network.FileServer fileServer;
+    private com.network.p2p.network.DhtNode dhtNode; // Only when DHT_PORT is set
+    private com.network.p2p.network.StreamServer streamServer; // Serves watch-only streams to VLC
     private EmbeddedMediaPlayerComponent mediaPlayerComponent;
     private java.util.Map<String, VideoSearchResult> searchResults = new java.util.HashMap<>();
 
     private JTextArea eventLog;
     private DefaultListModel<String> videoListModel;
     private DefaultListModel<String> streamListModel;
-    private JProgressBar globalBufferStatus;
+    private DownloadTableModel downloadTableModel; // Per-download status, redrawn by uiTimer
+    private Timer uiTimer;
+    private JCheckBoxMenuItem watchOnlyItem;
+    private PlaybackController playbackController; // Starts/pauses VLC for the download being played
     
     // Active download tracking
-    private String currentDownloadHash = null;
+    private volatile String currentDownloadHash = null; // Also read from VLC's event thread
+    private String currentStreamHash = null; // Watch-only stream being played, cancelled when another starts
     private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int UI_REFRESH_MS = 100; // Log and status table are redrawn at most 10 times a second
+    private static final int STATUS_REFRESH_TICKS = 10; // Rates change without chunk events, redraw them every second anyway
+    private static final int MAX_LOG_LINES = 1000;
+
+    // Event log ring; log() only appends here, the UI timer copies it to the text area
+    private final java.util.ArrayDeque<String> logLines = new java.util.ArrayDeque<>();
+    private volatile boolean logDirty = false;
+    private volatile boolean statusDirty = false;
+    private int ticksSinceStatus = 0;
 
     public MainFrame() {
         setTitle("P2P Video Streamer - CSE471");
@@ -43,6 +58,7 @@ public class MainFrame extends JFrame {
 
         // Initialize Managers
         initManagers();
+        initPlayerEvents();
 
         // Menu Bar
         setJMenuBar(createMenuBar());
@@ -59,6 +75,10 @@ public class MainFrame extends JFrame {
         // Bottom Panel: Event Log & Buffer
         add(createBottomPanel(), BorderLayout.SOUTH);
 
+        // Coalesced redraws: events only mark state dirty, the timer draws from a snapshot
+        uiTimer = new Timer(UI_REFRESH_MS, e -> refreshUi());
+        uiTimer.start();
+
         log("Application started.");
     }
 
@@ -68,10 +88,14 @@ public class MainFrame extends JFrame {
         downloadManager = new com.network.p2p.managers.DownloadManager();
         discoveryService = new DiscoveryService(peerManager);
         fileServer = new com.network.p2p.network.FileServer(fileManager);
+        streamServer = new com.network.p2p.network.StreamServer(downloadManager);
 
         peerManager.setDiscoveryService(discoveryService);
         peerManager.setFileManager(fileManager);
         downloadManager.setFileManager(fileManager);
+        downloadManager.setDiscoveryService(discoveryService);
+        fileServer.setDownloadManager(downloadManager);
+        fileServer.setPeerManager(peerManager);
         peerManager.setGuiCallback(() -> {
             log("Peer list updated. Total peers: " + peerManager.getPeers().size());
         });
@@ -103,24 +127,90 @@ public class MainFrame extends JFrame {
             });
         });
 
-        downloadManager.setChunkReceivedListener((fileName, chunkIndex, totalChunks, peerId) -> {
+        peerManager.setFileRemovedListener((hash, peerId) -> {
             SwingUtilities.invokeLater(() -> {
-                int progress = (int) ((chunkIndex + 1) * 100.0 / totalChunks);
-                log("Chunk " + (chunkIndex + 1) + "/" + totalChunks + " received for " + fileName + " from peer " + peerId + " (" + progress + "%)");
-                globalBufferStatus.setValue(progress);
-                globalBufferStatus.setString("Downloading: " + fileName + " - " + progress + "%");
+                VideoSearchResult result = searchResults.get(hash);
+                if (result == null)
+                    return;
+                int index = videoListModel.indexOf(result.getDisplayText());
+                result.removePeer(peerId);
+                if (result.peerIds.isEmpty()) {
+                    searchResults.remove(hash);
+                    if (index != -1)
+                        videoListModel.remove(index);
+                } else if (index != -1) {
+                    videoListModel.set(index, result.getDisplayText());
+                }
+                log("Peer " + peerId + " no longer shares: " + result.fileName);
             });
         });
 
+        // Per-chunk progress shows up in the status table on the next UI tick
+        downloadManager.setChunkReceivedListener((fileName, chunkIndex, totalChunks, peerId) -> statusDirty = true);
+
+        downloadManager.setVerificationListener((fileName, hash, outcome, badChunks) -> {
+            statusDirty = true;
+            switch (outcome) {
+                case VERIFIED:
+                    log("Verified " + fileName + " against its content hash");
+                    break;
+                case REFETCHING:
+                    log("WARNING: " + fileName + " failed verification, downloading " + badChunks + " chunk(s) again");
+                    break;
+                default:
+                    log("ERROR: " + fileName + " kept failing verification and was dropped");
+                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                            "Download failed verification: " + fileName, "Error", JOptionPane.ERROR_MESSAGE));
+            }
+        });
+
         downloadManager.setDownloadCompleteListener((fileName, hash) -> {
+            statusDirty = true;
+            log("Download complete: " + fileName);
             SwingUtilities.invokeLater(() -> {
-                log("Download complete: " + fileName);
-                globalBufferStatus.setString("Download Complete: " + fileName);
                 JOptionPane.showMessageDialog(this, "Download completed: " + fileName, "Success", JOptionPane.INFORMATION_MESSAGE);
             });
         });
     }
 
+    // Forward the playback position to the scheduler, so seeks re-prioritize the pieces around the new position
+    private void initPlayerEvents() {
+        if (mediaPlayerComponent == null)
+            return;
+        mediaPlayerComponent.mediaPlayer().events().addMediaPlayerEventListener(new uk.co.caprica.vlcj.player.base.MediaPlayerEventAdapter() {
+            @Override
+            public void positionChanged(uk.co.caprica.vlcj.player.base.MediaPlayer mediaPlayer, float newPosition) {
+                String hash = currentDownloadHash;
+                com.network.p2p.managers.DownloadManager.ActiveDownload download = hash != null ? downloadManager.getDownload(hash) : null;
+                if (download != null)
+                    downloadManager.setPlaybackPosition(hash, (long) (newPosition * download.fileSize));
+            }
+        });
+    }
+
+    private void startDht(int fileServerPort) {
+        if (dhtNode != null)
+            return;
+        dhtNode = com.network.p2p.network.DhtNode.fromEnvironment(discoveryService.getPeerId());
+        if (dhtNode == null)
+            return;
+        dhtNode.setLocalKeys(fileManager::getSharedHashes, fileServerPort);
+        peerManager.setDhtNode(dhtNode);
+        downloadManager.setDhtNode(dhtNode);
+        dhtNode.start();
+        int dhtPort = dhtNode.getPort();
+        SwingUtilities.invokeLater(() -> log("DHT node started on UDP port " + dhtPort));
+    }
+
+    private void stopDht() {
+        if (dhtNode == null)
+            return;
+        peerManager.setDhtNode(null);
+        downloadManager.setDhtNode(null);
+        dhtNode.stop();
+        dhtNode = null;
+    }
+
     private JMenuBar createMenuBar() {
         JMenuBar menuBar = new JMenuBar();
 
@@ -145,6 +235,7 @@ public class MainFrame extends JFrame {
                     SwingUtilities.invokeLater(() -> {
                         log("Network Connected (Discovery Started).");
                     });
+                    startDht(port);
                 } catch (InterruptedException ex) {
                     ex.printStackTrace();
                 }
@@ -155,6 +246,7 @@ public class MainFrame extends JFrame {
         disconnectItem.addActionListener(e -> {
             discoveryService.stop();
             fileServer.stop();
+            stopDht();
             log("Network Disconnected.");
         });
 
@@ -182,8 +274,13 @@ public class MainFrame extends JFrame {
         streamMenu.add(connectItem);
         streamMenu.add(disconnectItem);
         streamMenu.addSeparator();
+        watchOnlyItem = new JCheckBoxMenuItem("Watch Only (Don't Save)");
+        watchOnlyItem.setToolTipText("Keep only a small window around the playhead in memory; nothing is written to the buffer folder");
+
         streamMenu.add(setRootItem);
         streamMenu.add(setBufferItem);
+        streamMenu.addSeparator();
+        streamMenu.add(watchOnlyItem);
 
         // Help Menu
         JMenu helpMenu = new JMenu("Help");
@@ -211,8 +308,7 @@ public class MainFrame extends JFrame {
             
             // 1. Broadcast to network peers (UDP) if query not empty
             if (!query.isEmpty()) {
-                String message = "ID:" + discoveryService.getPeerId() + ":" + query;
-                discoveryService.broadcastPacket(com.network.p2p.network.Protocol.TYPE_QUERY_FILES, message, 3);
+                peerManager.search(query);
             }
             
             // 2. Filter already loaded files (from manual peers like Docker)
@@ -351,38 +447,29 @@ public class MainFrame extends JFrame {
                         return;
                     }
 
+                    // A watch-only stream only lives while it is being played
+                    if (currentStreamHash != null && !currentStreamHash.equals(hash)) {
+                        downloadManager.cancelDownload(currentStreamHash);
+                        currentStreamHash = null;
+                    }
+
                     // Store current download hash for tracking
                     currentDownloadHash = hash;
+
+                    if (watchOnlyItem.isSelected()) {
+                        playStream(fname, hash, size, peerIds, peerIdToIp, peerIdToPort);
+                        return;
+                    }
                     
                     log("=== Starting download of " + fname + " from " + peerIds.size() + " peer(s) ===");
 
                     downloadManager.startDownload(fname, hash, size, peerIds, peerIdToIp, peerIdToPort);
 
-                    // Simple approach: Wait for some chunks then start VLC
-                    if (mediaPlayerComponent != null && fileManager.getBufferFolder() != null) {
+                    // VLC is started by the PlaybackController once enough of the file is buffered
+                    if (fileManager.getBufferFolder() != null) {
                         String path = new java.io.File(fileManager.getBufferFolder(), fname).getAbsolutePath();
-                        new Thread(() -> {
-                            try {
-                                System.out.println("\n🎬 Waiting 4 seconds for initial chunks to download...");
-                                Thread.sleep(4000); // Wait 4 seconds for more chunks
-                                SwingUtilities.invokeLater(() -> {
-                                    System.out.println("🎬 Starting VLC playback...");
-                                    System.out.println("File path: " + path);
-                                    
-                                    // VLC options to handle incomplete/downloading files
-                                    String[] vlcOptions = {
-                                        ":file-caching=2000",
-                                        ":network-caching=2000"
-                                    };
-                                    
-                                    mediaPlayerComponent.mediaPlayer().media().play(path, vlcOptions);
-                                    log("📼 Playing: " + fname + " (download in progress, may buffer)");
-                                    System.out.println("✅ VLC started with 2s cache - will buffer automatically if needed\n");
-                                });
-                            } catch (Exception ex) {
-                                ex.printStackTrace();
-                            }
-                        }).start();
+                        // Small caches: the controller pauses playback before it reaches missing data
+                        startPlayback(fname, hash, size, path, ":file-caching=1000", ":network-caching=1000");
                     }
                 }
             }
@@ -410,28 +497,104 @@ public class MainFrame extends JFrame {
         return split;
     }
 
+    // Watch-only: nothing goes to the buffer folder, VLC reads the in-memory window over local HTTP
+    private void playStream(String fname, String hash, long size, java.util.Set<String> peerIds,
+                            java.util.Map<String, String> peerIdToIp, java.util.Map<String, Integer> peerIdToPort) {
+        try {
+            streamServer.start();
+        } catch (java.io.IOException ex) {
+            log("ERROR: Could not start the local stream server: " + ex.getMessage());
+            return;
+        }
+        log("=== Streaming " + fname + " (watch only) from " + peerIds.size() + " peer(s) ===");
+        downloadManager.startStream(fname, hash, size, peerIds, peerIdToIp, peerIdToPort);
+        currentStreamHash = hash;
+        startPlayback(fname, hash, size, streamServer.getUrl(hash, fname), ":network-caching=1000");
+    }
+
+    // Hands the media to VLC through a PlaybackController, which starts and pauses it by buffer level
+    private void startPlayback(String fname, String hash, long size, String location, String... options) {
+        if (mediaPlayerComponent == null)
+            return;
+        if (playbackController != null)
+            playbackController.stop();
+
+        uk.co.caprica.vlcj.player.base.MediaPlayer mediaPlayer = mediaPlayerComponent.mediaPlayer();
+        playbackController = new PlaybackController(downloadManager, hash, size, new PlaybackController.Player() {
+            @Override
+            public void start() {
+                SwingUtilities.invokeLater(() -> {
+                    System.out.println("🎬 Starting VLC playback: " + location);
+                    mediaPlayer.media().play(location, options);
+                    log("📼 Playing: " + fname);
+                });
+            }
+
+            @Override
+            public void setPaused(boolean paused) {
+                mediaPlayer.controls().setPause(paused);
+            }
+
+            @Override
+            public float getPosition() {
+                return mediaPlayer.status().position();
+            }
+        }, this::log);
+        playbackController.start();
+    }
+
     private JPanel createBottomPanel() {
         JPanel panel = new JPanel(new BorderLayout());
 
-        // buffer status
-        globalBufferStatus = new JProgressBar(0, 100);
-        globalBufferStatus.setStringPainted(true);
-        globalBufferStatus.setString("Global Buffer: 0%");
+        // Per-download status
+        downloadTableModel = new DownloadTableModel();
+        JTable downloadTable = new JTable(downloadTableModel);
+        JProgressBar progressRenderer = new JProgressBar(0, 100);
+        progressRenderer.setStringPainted(true);
+        downloadTable.getColumnModel().getColumn(DownloadTableModel.PROGRESS_COLUMN).setCellRenderer((table, value, selected, focused, row, column) -> {
+            progressRenderer.setValue((Integer) value);
+            progressRenderer.setString(value + "%");
+            return progressRenderer;
+        });
+        JScrollPane tablePane = new JScrollPane(downloadTable);
+        tablePane.setPreferredSize(new Dimension(600, 90));
 
         // Log
         eventLog = new JTextArea(5, 50);
         eventLog.setEditable(false);
 
-        panel.add(globalBufferStatus, BorderLayout.NORTH);
+        panel.add(tablePane, BorderLayout.NORTH);
         panel.add(new JScrollPane(eventLog), BorderLayout.CENTER);
         return panel;
     }
 
+    // Safe from any thread; the text area catches up on the next UI tick
     private void log(String message) {
-        SwingUtilities.invokeLater(() -> {
-            eventLog.append(message + "\n");
+        synchronized (logLines) {
+            logLines.addLast(message);
+            if (logLines.size() > MAX_LOG_LINES)
+                logLines.removeFirst();
+        }
+        logDirty = true;
+    }
+
+    // Runs on the EDT every UI_REFRESH_MS
+    private void refreshUi() {
+        if (logDirty) {
+            logDirty = false;
+            StringBuilder text = new StringBuilder();
+            synchronized (logLines) {
+                for (String line : logLines)
+                    text.append(line).append('\n');
+            }
+            eventLog.setText(text.toString());
             eventLog.setCaretPosition(eventLog.getDocument().getLength());
-        });
+        }
+        if (statusDirty || ++ticksSinceStatus >= STATUS_REFRESH_TICKS) {
+            statusDirty = false;
+            ticksSinceStatus = 0;
+            downloadTableModel.setRows(downloadManager.getStatusSnapshot());
+        }
     }
 
     private void refreshVideoList() {
@@ -0,0 +1,133 @@
+package com.network.p2p.gui;
+
+import com.network.p2p.managers.DownloadManager;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Decides when the player may run while its file is still downloading. The media bitrate comes
+ * from the container duration (file size / duration), the download rate from DownloadManager.
+ * Playback starts as soon as the container index is here and the gap-free data ahead of the
+ * start covers a safe number of seconds, more when the download is slower than the media, and is
+ * paused before the playhead reaches missing data rather than letting the player run into it.
+ */
+public class PlaybackController {
+    private static final long TICK_MS = 250;
+    private static final double MIN_BUFFER_S = 3.0; // Always hold at least this much before (re)starting
+    private static final double MAX_BUFFER_S = 30.0; // Never wait for more than this, pausing covers the rest
+    private static final double LOW_WATER_S = 2.0; // Pause when less than this is left ahead of the playhead
+    private static final double FALLBACK_BITRATE = 5_000_000 / 8.0; // Bytes/s assumed until the duration is known
+
+    public interface Player {
+        void start();
+
+        void setPaused(boolean paused);
+
+        /** Playback position as a fraction of the media (0..1). */
+        float getPosition();
+    }
+
+    private enum State { WAITING, PLAYING, REBUFFERING, STOPPED }
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "PlaybackController");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final DownloadManager downloadManager;
+    private final String hash;
+    private final Player player;
+    private final Consumer<String> log;
+    private final long fileSize;
+    private volatile State state = State.WAITING;
+    private ScheduledFuture<?> ticker;
+
+    public PlaybackController(DownloadManager downloadManager, String hash, long fileSize, Player player, Consumer<String> log) {
+        this.downloadManager = downloadManager;
+        this.hash = hash;
+        this.fileSize = fileSize;
+        this.player = player;
+        this.log = log;
+    }
+
+    public synchronized void start() {
+        if (ticker == null)
+            ticker = scheduler.scheduleWithFixedDelay(this::tick, 0, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        state = State.STOPPED;
+        if (ticker != null)
+            ticker.cancel(false);
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    private void tick() {
+        try {
+            if (state == State.STOPPED)
+                return;
+            if (downloadManager.getDownload(hash) == null) {
+                stop();
+                return;
+            }
+
+            double duration = downloadManager.getMediaDuration(hash);
+            double bitrate = duration > 0 ? fileSize / duration : FALLBACK_BITRATE;
+            double rate = downloadManager.getDownloadRate(hash);
+            long position = state == State.WAITING ? 0 : (long) (Math.max(0, Math.min(1, player.getPosition())) * fileSize);
+            long ahead = downloadManager.getContiguousBytes(hash, position);
+            boolean reachesEnd = position + ahead >= fileSize || downloadManager.isDownloadComplete(hash);
+            double aheadSeconds = ahead / bitrate;
+
+            switch (state) {
+                case WAITING:
+                    // The player also needs the container index (moov / Cues), wherever it sits in the file
+                    if (reachesEnd || (aheadSeconds >= requiredBuffer(bitrate, rate, duration, position)
+                            && downloadManager.isContainerIndexReady(hash))) {
+                        state = State.PLAYING;
+                        log.accept(String.format("▶ Starting playback with %.1f s buffered (media %d KB/s%s, download %d KB/s)",
+                                aheadSeconds, (long) (bitrate / 1024), duration > 0 ? "" : " assumed", (long) (rate / 1024)));
+                        player.start();
+                    }
+                    break;
+                case PLAYING:
+                    if (!reachesEnd && aheadSeconds < LOW_WATER_S) {
+                        state = State.REBUFFERING;
+                        log.accept(String.format("⏸ Buffering: only %.1f s ahead of the playhead (download %d KB/s)", aheadSeconds, (long) (rate / 1024)));
+                        player.setPaused(true);
+                    }
+                    break;
+                case REBUFFERING:
+                    if (reachesEnd || aheadSeconds >= requiredBuffer(bitrate, rate, duration, position)) {
+                        state = State.PLAYING;
+                        log.accept(String.format("▶ Resuming with %.1f s buffered", aheadSeconds));
+                        player.setPaused(false);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (RuntimeException e) {
+            System.err.println("PlaybackController: " + e.getMessage());
+        }
+    }
+
+    // Seconds of media to hold before (re)starting: the floor, plus what a download slower than
+    // the media would fall behind over the rest of the video
+    private double requiredBuffer(double bitrate, double rate, double duration, long position) {
+        double seconds = MIN_BUFFER_S;
+        if (rate < bitrate) {
+            double remaining = duration > 0 ? Math.max(0, duration - position / bitrate) : MAX_BUFFER_S;
+            seconds += remaining * (1 - rate / bitrate);
+        }
+        return Math.min(seconds, MAX_BUFFER_S);
+    }
+}
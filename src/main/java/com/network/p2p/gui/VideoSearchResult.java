@@ -23,6 +23,10 @@ public class VideoSearchResult {
         }
     }
 
+    public void removePeer(String peerId) {
+        peerIds.remove(peerId);
+    }
+
     public String getDisplayText() {
         StringBuilder sb = new StringBuilder();
         sb.append(fileName).append(" (").append(size / 1024).append(" KB)");
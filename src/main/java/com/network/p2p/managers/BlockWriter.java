@@ -0,0 +1,226 @@
+package com.network.p2p.managers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Write-back stage between the download workers and the disk. Workers hand over received data
+ * and go back to their sockets; one writer thread drains the queue, sorts pending writes per
+ * file and merges adjacent ones into a single gathering write. The queue is bounded in bytes:
+ * when the disk falls behind, submit() blocks, which stops the worker from reading its socket
+ * and lets TCP flow control slow the sender down.
+ */
+public class BlockWriter {
+    private static final int DEFAULT_QUEUE_MB = 32;
+    private static final int MAX_BATCH = 256; // Writes taken from the queue per pass
+    private static final Object CLOSE = new Object(); // Tag of the marker queued by close()
+
+    // Tag of the marker queued by finish(); released once the storage is written and flushed
+    private static class FlushMarker {
+        final CountDownLatch done = new CountDownLatch(1);
+    }
+
+    public enum FsyncPolicy {
+        NEVER, // Leave flushing to the OS
+        COMPLETE, // fsync once a download is complete, before it is seeded
+        ALWAYS // fsync after every batch
+    }
+
+    public interface WriteCallback {
+        void onWritten(Write write, IOException error);
+    }
+
+    public static class Write {
+        final PieceStorage storage;
+        final long offset;
+        final byte[] data;
+        final Object tag; // Whatever the caller needs to finish the write (e.g. block range)
+        final WriteCallback callback;
+
+        Write(PieceStorage storage, long offset, byte[] data, Object tag, WriteCallback callback) {
+            this.storage = storage;
+            this.offset = offset;
+            this.data = data;
+            this.tag = tag;
+            this.callback = callback;
+        }
+    }
+
+    private final LinkedBlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final int capacityBytes;
+    private final Semaphore capacity;
+    private final FsyncPolicy fsyncPolicy;
+    private volatile boolean running = true;
+
+    private long writes = 0;
+    private long runs = 0; // Contiguous writes actually issued
+
+    public BlockWriter(int capacityBytes, FsyncPolicy fsyncPolicy) {
+        this.capacityBytes = capacityBytes;
+        this.capacity = new Semaphore(capacityBytes);
+        this.fsyncPolicy = fsyncPolicy;
+        Thread thread = new Thread(this::writeLoop, "BlockWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Configured from WRITE_QUEUE_MB and WRITE_FSYNC (never|complete|always). */
+    public static BlockWriter fromEnvironment() {
+        int queueMb = DEFAULT_QUEUE_MB;
+        String envQueue = System.getenv("WRITE_QUEUE_MB");
+        if (envQueue != null && !envQueue.trim().isEmpty()) {
+            try {
+                queueMb = Math.max(1, Integer.parseInt(envQueue.trim()));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid WRITE_QUEUE_MB value: " + envQueue + ", using " + DEFAULT_QUEUE_MB);
+            }
+        }
+        FsyncPolicy policy = FsyncPolicy.COMPLETE;
+        String envFsync = System.getenv("WRITE_FSYNC");
+        if (envFsync != null && !envFsync.trim().isEmpty()) {
+            try {
+                policy = FsyncPolicy.valueOf(envFsync.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid WRITE_FSYNC value: " + envFsync + ", using " + policy);
+            }
+        }
+        return new BlockWriter(queueMb * 1024 * 1024, policy);
+    }
+
+    /**
+     * Queues data for writing at offset; blocks while the queue is full (backpressure).
+     * The callback runs on the writer thread once the data is in the file (or failed).
+     */
+    public void submit(PieceStorage storage, long offset, byte[] data, Object tag, WriteCallback callback) throws InterruptedException {
+        capacity.acquire(permits(data));
+        queue.add(new Write(storage, offset, data, tag, callback));
+    }
+
+    /**
+     * Waits until every write queued for the storage so far is in the file, then flushes it if the
+     * fsync policy asks for it. The flush is queued behind those writes like close(), so call this
+     * from any thread but the writer's own (a write callback would wait for itself).
+     */
+    public void finish(PieceStorage storage) throws InterruptedException {
+        FlushMarker marker = new FlushMarker();
+        queue.add(new Write(storage, 0, new byte[0], marker, null));
+        marker.done.await();
+    }
+
+    /**
+     * Closes the storage after every write already queued for it, so a cancelled download's
+     * in-flight blocks don't hit a closed channel.
+     */
+    public void close(PieceStorage storage) {
+        queue.add(new Write(storage, 0, new byte[0], CLOSE, null));
+    }
+
+    public int getQueuedBytes() {
+        return capacityBytes - capacity.availablePermits();
+    }
+
+    public String getStats() {
+        return String.format("%d writes in %d runs, %d KB queued", writes, runs, getQueuedBytes() / 1024);
+    }
+
+    public void stop() {
+        running = false;
+        queue.add(new Write(null, 0, new byte[0], null, null)); // Wake the writer
+    }
+
+    private int permits(byte[] data) {
+        return Math.min(data.length, capacityBytes);
+    }
+
+    private void writeLoop() {
+        List<Write> batch = new ArrayList<>();
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+
+            Map<PieceStorage, List<Write>> byStorage = new LinkedHashMap<>();
+            List<PieceStorage> closing = new ArrayList<>();
+            List<Write> flushes = new ArrayList<>();
+            for (Write write : batch) {
+                if (write.tag == CLOSE)
+                    closing.add(write.storage);
+                else if (write.tag instanceof FlushMarker)
+                    flushes.add(write);
+                else if (write.storage != null)
+                    byStorage.computeIfAbsent(write.storage, k -> new ArrayList<>()).add(write);
+            }
+            for (Map.Entry<PieceStorage, List<Write>> entry : byStorage.entrySet())
+                writeRuns(entry.getKey(), entry.getValue());
+            // After this batch's writes, which include everything queued before the markers
+            for (Write flush : flushes) {
+                if (fsyncPolicy != FsyncPolicy.NEVER) {
+                    try {
+                        flush.storage.flush();
+                    } catch (IOException e) {
+                        System.err.println("BlockWriter: Failed to flush storage: " + e.getMessage());
+                    }
+                }
+                ((FlushMarker) flush.tag).done.countDown();
+            }
+            for (PieceStorage storage : closing) {
+                try {
+                    storage.close();
+                } catch (IOException e) {
+                    System.err.println("BlockWriter: Failed to close storage: " + e.getMessage());
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    // Sorts one storage's writes by offset and issues one gathering write per contiguous run
+    private void writeRuns(PieceStorage storage, List<Write> pending) {
+        pending.sort(Comparator.comparingLong(w -> w.offset));
+        IOException error = null;
+        try {
+            int runStart = 0;
+            while (runStart < pending.size()) {
+                int runEnd = runStart + 1;
+                long next = pending.get(runStart).offset + pending.get(runStart).data.length;
+                while (runEnd < pending.size() && pending.get(runEnd).offset == next) {
+                    next += pending.get(runEnd).data.length;
+                    runEnd++;
+                }
+
+                ByteBuffer[] buffers = new ByteBuffer[runEnd - runStart];
+                for (int i = runStart; i < runEnd; i++)
+                    buffers[i - runStart] = ByteBuffer.wrap(pending.get(i).data);
+                storage.write(pending.get(runStart).offset, buffers);
+                runs++;
+                runStart = runEnd;
+            }
+            if (fsyncPolicy == FsyncPolicy.ALWAYS)
+                storage.flush();
+        } catch (IOException e) {
+            error = e;
+            System.err.println("BlockWriter: Write failed: " + e.getMessage());
+        }
+
+        for (Write write : pending) {
+            writes++;
+            capacity.release(permits(write.data));
+            try {
+                write.callback.onWritten(write, error);
+            } catch (RuntimeException e) {
+                System.err.println("BlockWriter: Callback failed: " + e.getMessage());
+            }
+        }
+    }
+}
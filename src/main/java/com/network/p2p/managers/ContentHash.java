@@ -0,0 +1,152 @@
+package com.network.p2p.managers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Content id of a file: the root of a SHA-256 hash tree whose leaves are the 256 KB pieces
+ * (leaf = SHA-256(0x00 | piece), node = SHA-256(0x01 | left | right), an odd node is carried up
+ * unchanged, an empty file is the leaf of no data). Pieces are independent, so they are read and
+ * hashed by a fork/join pool in parallel (HASH_THREADS, default one per core), each worker reusing
+ * one piece buffer, so memory stays at threads x 256 KB plus 32 bytes per piece whatever the file
+ * size. The leaf digests double as piece hashes: a downloader whose file doesn't match can check a
+ * source's leaves against the content id and find exactly which pieces are wrong.
+ */
+public class ContentHash {
+    public static final int PIECE_SIZE = 256 * 1024;
+    public static final int DIGEST_LENGTH = 32;
+    private static final int PIECES_PER_TASK = 16; // Contiguous 4 MB runs per task, so each worker reads sequentially
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private static final ForkJoinPool pool = new ForkJoinPool(threadsFromEnvironment());
+    private static final ThreadLocal<byte[]> pieceBuffer = ThreadLocal.withInitial(() -> new byte[PIECE_SIZE]);
+    private static final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(ContentHash::sha256);
+
+    public static class Result {
+        public final String contentId;
+        public final byte[][] pieceDigests; // Leaves of the tree
+
+        Result(String contentId, byte[][] pieceDigests) {
+            this.contentId = contentId;
+            this.pieceDigests = pieceDigests;
+        }
+    }
+
+    // Hashes pieces [from, to) into leaves, splitting until the run is short enough to read in one go
+    private static class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final PieceStorage storage;
+        final long size;
+        final byte[][] leaves;
+        final int from;
+        final int to;
+
+        LeafTask(PieceStorage storage, long size, byte[][] leaves, int from, int to) {
+            this.storage = storage;
+            this.size = size;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PIECES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LeafTask(storage, size, leaves, from, middle), new LeafTask(storage, size, leaves, middle, to));
+                return;
+            }
+            byte[] buffer = pieceBuffer.get();
+            MessageDigest md = digest.get();
+            try {
+                for (int i = from; i < to; i++) {
+                    long offset = (long) i * PIECE_SIZE;
+                    int length = (int) Math.min(PIECE_SIZE, size - offset);
+                    int read = 0;
+                    while (read < length) {
+                        int n = storage.read(offset + read, buffer, read, length - read);
+                        if (n <= 0)
+                            throw new IOException("Unexpected end of data at " + (offset + read) + " of " + size);
+                        read += n;
+                    }
+                    md.update(LEAF_PREFIX);
+                    md.update(buffer, 0, length);
+                    leaves[i] = md.digest();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static int threadsFromEnvironment() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String env = System.getenv("HASH_THREADS");
+        if (env != null && !env.trim().isEmpty()) {
+            try {
+                threads = Math.max(1, Integer.parseInt(env.trim()));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid HASH_THREADS value: " + env + ", using " + threads);
+            }
+        }
+        return threads;
+    }
+
+    public static Result compute(PieceStorage storage, long size) throws IOException {
+        int pieces = (int) ((size + PIECE_SIZE - 1) / PIECE_SIZE);
+        byte[][] leaves = new byte[pieces][];
+        try {
+            pool.invoke(new LeafTask(storage, size, leaves, 0, pieces));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new Result(rootOf(leaves), leaves);
+    }
+
+    /** Content id for the given leaves, e.g. to check piece hashes a peer sent against the id. */
+    public static String rootOf(byte[][] leaves) {
+        MessageDigest md = sha256();
+        if (leaves.length == 0) {
+            md.update(LEAF_PREFIX);
+            return hex(md.digest());
+        }
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < level.length / 2; i++) {
+                md.update(NODE_PREFIX);
+                md.update(level[2 * i]);
+                md.update(level[2 * i + 1]);
+                next[i] = md.digest();
+            }
+            if (level.length % 2 == 1)
+                next[next.length - 1] = level[level.length - 1];
+            level = next;
+        }
+        return hex(level[0]);
+    }
+
+    public static String hex(byte[] digest) {
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : digest) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1)
+                hexString.append('0');
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e); // Every JRE ships it
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.network.p2p.managers;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches the shared video folder and reports added, modified and removed video files to the
+ * FileManager, so only changed files get re-hashed. Events are debounced per file because a
+ * copy in progress produces a burst of MODIFY events.
+ */
+public class DirectoryWatcher {
+    private static final long DEBOUNCE_MS = 1000;
+
+    private final Path root;
+    private final boolean recursive;
+    private final FileManager fileManager;
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    private final Map<Path, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService debouncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "DirectoryWatcher-Debounce");
+        t.setDaemon(true);
+        return t;
+    });
+    private WatchService watchService;
+    private volatile boolean running = false;
+
+    public DirectoryWatcher(Path root, boolean recursive, FileManager fileManager) {
+        this.root = root;
+        this.recursive = recursive;
+        this.fileManager = fileManager;
+    }
+
+    public void start() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            register(root);
+        } catch (IOException e) {
+            System.err.println("DirectoryWatcher: Failed to watch " + root + ": " + e.getMessage());
+            return;
+        }
+        running = true;
+        Thread thread = new Thread(this::watchLoop, "DirectoryWatcher");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Watching " + root + (recursive ? " (recursive)" : ""));
+    }
+
+    public void stop() {
+        running = false;
+        debouncer.shutdownNow();
+        try {
+            if (watchService != null)
+                watchService.close();
+        } catch (IOException e) {
+            // Ignore, shutting down
+        }
+    }
+
+    // Register a directory (and, in recursive mode, everything below it)
+    private void register(Path dir) throws IOException {
+        if (!recursive) {
+            watchDir(dir);
+            return;
+        }
+        try (Stream<Path> dirs = Files.walk(dir)) {
+            for (Path d : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator)
+                watchDir(d);
+        }
+    }
+
+    private void watchDir(Path dir) throws IOException {
+        WatchKey key = dir.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        watchedDirs.put(key, dir);
+    }
+
+    private void watchLoop() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+
+            Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events were lost, fall back to a fingerprint-based rescan
+                    fileManager.onOverflow();
+                    continue;
+                }
+                if (dir == null)
+                    continue;
+
+                Path changed = dir.resolve((Path) event.context());
+                if (recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        register(changed);
+                    } catch (IOException e) {
+                        System.err.println("DirectoryWatcher: Failed to watch " + changed + ": " + e.getMessage());
+                    }
+                    fileManager.onOverflow(); // Pick up files that were moved in together with the directory
+                    continue;
+                }
+                if (FileManager.isVideoFile(changed.getFileName().toString())) {
+                    schedule(changed);
+                } else if (recursive && event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    fileManager.onOverflow(); // A whole sub-directory may have gone away
+                }
+            }
+
+            if (!key.reset())
+                watchedDirs.remove(key);
+        }
+    }
+
+    private void schedule(Path path) {
+        try {
+            ScheduledFuture<?> previous = pending.put(path, debouncer.schedule(() -> {
+                pending.remove(path);
+                fileManager.onPathChanged(path);
+            }, DEBOUNCE_MS, TimeUnit.MILLISECONDS));
+            if (previous != null)
+                previous.cancel(false);
+        } catch (RejectedExecutionException e) {
+            // Watcher is shutting down
+        }
+    }
+}
@@ -1,15 +1,41 @@
 package com.network.p2p.managers;
 
+import com.network.p2p.network.DhtNode;
+import com.network.p2p.network.DiscoveryService;
+import com.network.p2p.network.Protocol;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 
 public class DownloadManager {
     private static final int CHUNK_SIZE = 256 * 1024; // 256 KB
+    // Chunks are requested in blocks so one piece can come from several peers at once
+    static final int BLOCK_SIZE = 16 * 1024;
+    static final int BLOCKS_PER_CHUNK = CHUNK_SIZE / BLOCK_SIZE;
+    private static final int URGENT_WINDOW = 8; // Chunks after the first missing one, fetched in order for playback
+    private static final int MAX_VERIFY_ATTEMPTS = 3; // Verification rounds before a download that keeps failing is dropped
+    private static final int PIECE_HASH_TIMEOUT_MS = 60000;
+    private static final long RATE_SAMPLE_MS = 1000; // Download rate is sampled over this period, then smoothed
+    private static final int SEEK_JUMP_CHUNKS = 4; // A playback position moving further than this at once is a seek
+
+    // nextChunk()/nextBlock() results besides a real index
+    public static final int NO_CHUNK_AVAILABLE = -1;
+    public static final int DOWNLOAD_FINISHED = -2;
 
     public static class ActiveDownload {
         public String fileName;
@@ -18,10 +44,29 @@ public class DownloadManager {
         public int totalChunks;
         public BitSet completedChunks;
         public BitSet inProgressChunks; // Track chunks currently being downloaded
+        public int totalBlocks; // Block index = chunkIndex * BLOCKS_PER_CHUNK + block within the chunk
+        public BitSet receivedBlocks; // Written to disk
+        public BitSet requestedBlocks; // Requested from a peer, not received yet
+        public BitSet writingBlocks; // Received, waiting in the write-back queue
         public File outputFile;
+        public PieceStorage storage; // Where blocks are written and partial-seed chunks read from
+        public StreamWindowStorage window; // Watch-only downloads: same object as storage, null otherwise
         public Set<String> sources = new HashSet<>(); // IP:Port
-        public ConcurrentHashMap<String, DownloadWorker> workers = new ConcurrentHashMap<>(); // peerIp -> worker
+        public ConcurrentHashMap<String, DownloadWorker> workers = new ConcurrentHashMap<>(); // peerId -> worker
+        public Map<String, BitSet> peerHaves = new HashMap<>(); // peerId -> chunks that peer can serve
+        public int[] availability; // chunkIndex -> number of known peers holding it
         public long startTime;
+        MediaContainer.Layout layout; // Container header info once it could be read completely
+        BitSet priorityChunks = new BitSet(); // Container index (moov, SeekHead/Cues) and the chunk the parser waits for
+        volatile int playheadChunk = 0; // Where playback is; the urgent window starts at the first missing chunk from here
+        int lastPlayerChunk = 0; // Last position the player reported, to tell seeks from playback
+        int lastReadChunk = -1; // Last chunk read through readStream()
+        volatile boolean verifying = false; // Complete, content hash being checked before it is seeded
+        int verifyAttempts = 0;
+        final Map<String, InetSocketAddress> peerAddresses = new ConcurrentHashMap<>(); // Every source used, for refetches
+        private long rateSampleStart = System.currentTimeMillis();
+        private long rateSampleBytes = 0;
+        private double bytesPerSecond = 0; // Smoothed download rate
 
         public ActiveDownload(String fileName, String hash, long fileSize, File outputFile) {
             this.fileName = fileName;
@@ -31,6 +76,11 @@ public class DownloadManager {
             this.totalChunks = (int) Math.ceil(fileSize / (double) CHUNK_SIZE);
             this.completedChunks = new BitSet(totalChunks);
             this.inProgressChunks = new BitSet(totalChunks);
+            this.totalBlocks = totalChunks == 0 ? 0 : (totalChunks - 1) * BLOCKS_PER_CHUNK + blockCount(totalChunks - 1);
+            this.receivedBlocks = new BitSet(totalBlocks);
+            this.requestedBlocks = new BitSet(totalBlocks);
+            this.writingBlocks = new BitSet(totalBlocks);
+            this.availability = new int[totalChunks];
             this.startTime = System.currentTimeMillis();
         }
 
@@ -71,22 +121,225 @@ public class DownloadManager {
         public int getFirstMissingChunk() {
             return completedChunks.nextClearBit(0);
         }
+
+        // Where in-order fetching starts: the first missing chunk at or after the playhead
+        int getUrgentStart() {
+            return completedChunks.nextClearBit(playheadChunk);
+        }
+
+        // Chunks at or past this index are not fetched yet (the stream window is full up to here)
+        int getFetchLimit() {
+            if (window == null)
+                return totalChunks;
+            return (int) Math.min(totalChunks, (long) playheadChunk + window.getReadAheadChunks());
+        }
+
+        // Where the rarest-first scan starts: the whole file, or the window for watch-only downloads
+        int getScanStart() {
+            return window != null ? playheadChunk : 0;
+        }
+
+        // Every block of chunks [from, to) is received, requested or being written
+        boolean allAssigned(int fromChunk, int toChunk) {
+            int end = toChunk >= totalChunks ? totalBlocks : toChunk * BLOCKS_PER_CHUNK;
+            for (int b = fromChunk * BLOCKS_PER_CHUNK; b < end; b++) {
+                if (!receivedBlocks.get(b) && !requestedBlocks.get(b) && !writingBlocks.get(b))
+                    return false;
+            }
+            return true;
+        }
+
+        int blockCount(int chunkIndex) {
+            long chunkLength = Math.min(CHUNK_SIZE, fileSize - (long) chunkIndex * CHUNK_SIZE);
+            return (int) ((chunkLength + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        }
+
+        int blockLength(int blockIndex) {
+            return (int) Math.min(BLOCK_SIZE, fileSize - (long) blockIndex * BLOCK_SIZE);
+        }
+
+        // First block of a chunk that is neither received nor requested, or -1
+        int firstUnassignedBlock(int chunkIndex) {
+            int start = chunkIndex * BLOCKS_PER_CHUNK;
+            int end = start + blockCount(chunkIndex);
+            for (int b = start; b < end; b++) {
+                if (!receivedBlocks.get(b) && !requestedBlocks.get(b) && !writingBlocks.get(b))
+                    return b;
+            }
+            return -1;
+        }
+
+        boolean isStarted(int chunkIndex) {
+            int start = chunkIndex * BLOCKS_PER_CHUNK;
+            int end = start + blockCount(chunkIndex);
+            int received = receivedBlocks.nextSetBit(start);
+            int requested = requestedBlocks.nextSetBit(start);
+            int writing = writingBlocks.nextSetBit(start);
+            return (received >= 0 && received < end) || (requested >= 0 && requested < end)
+                    || (writing >= 0 && writing < end);
+        }
+
+        // Every block of the chunk is on disk or on its way there
+        boolean allBlocksArrived(int chunkIndex) {
+            int start = chunkIndex * BLOCKS_PER_CHUNK;
+            int end = start + blockCount(chunkIndex);
+            for (int b = start; b < end; b++) {
+                if (!receivedBlocks.get(b) && !writingBlocks.get(b))
+                    return false;
+            }
+            return true;
+        }
+
+        boolean allBlocksReceived(int chunkIndex) {
+            int start = chunkIndex * BLOCKS_PER_CHUNK;
+            int end = start + blockCount(chunkIndex);
+            int missing = receivedBlocks.nextClearBit(start);
+            return missing >= end;
+        }
+
+        // Keep inProgressChunks in line with the block state of one chunk
+        void updateInProgress(int chunkIndex) {
+            int start = chunkIndex * BLOCKS_PER_CHUNK;
+            int requested = requestedBlocks.nextSetBit(start);
+            inProgressChunks.set(chunkIndex, requested >= 0 && requested < start + blockCount(chunkIndex));
+        }
+
+        void recordReceived(int bytes) {
+            rateSampleBytes += bytes;
+            foldRate();
+        }
+
+        // Close the current sample once it is long enough; a stalled download decays towards 0
+        void foldRate() {
+            long now = System.currentTimeMillis();
+            long elapsed = now - rateSampleStart;
+            if (elapsed < RATE_SAMPLE_MS)
+                return;
+            double sample = rateSampleBytes * 1000.0 / elapsed;
+            bytesPerSecond = bytesPerSecond == 0 ? sample : 0.7 * bytesPerSecond + 0.3 * sample;
+            rateSampleStart = now;
+            rateSampleBytes = 0;
+        }
+
+        // Replace a peer's have-bitmap, keeping the availability counts in sync
+        void setPeerHaves(String peerId, BitSet haves) {
+            BitSet old = peerHaves.put(peerId, haves);
+            if (old != null) {
+                for (int i = old.nextSetBit(0); i >= 0 && i < totalChunks; i = old.nextSetBit(i + 1))
+                    availability[i]--;
+            }
+            for (int i = haves.nextSetBit(0); i >= 0 && i < totalChunks; i = haves.nextSetBit(i + 1))
+                availability[i]++;
+        }
+
+        void addPeerHave(String peerId, int chunkIndex) {
+            if (chunkIndex < 0 || chunkIndex >= totalChunks)
+                return;
+            BitSet haves = peerHaves.computeIfAbsent(peerId, k -> new BitSet(totalChunks));
+            if (!haves.get(chunkIndex)) {
+                haves.set(chunkIndex);
+                availability[chunkIndex]++;
+            }
+        }
+
+        void clearPeerHave(String peerId, int chunkIndex) {
+            BitSet haves = peerHaves.get(peerId);
+            if (haves != null && haves.get(chunkIndex)) {
+                haves.clear(chunkIndex);
+                availability[chunkIndex]--;
+            }
+        }
+    }
+
+    // Point-in-time view of one download for status displays, taken under its lock
+    public static class DownloadStatus {
+        public final String fileName;
+        public final String hash;
+        public final long fileSize;
+        public final int totalChunks;
+        public final int completedChunks;
+        public final int playableChunks; // Gap-free from the playhead
+        public final int sources;
+        public final double bytesPerSecond;
+        public final boolean complete;
+        public final boolean verifying;
+        public final boolean watchOnly;
+
+        DownloadStatus(ActiveDownload download) {
+            this.fileName = download.fileName;
+            this.hash = download.hash;
+            this.fileSize = download.fileSize;
+            this.totalChunks = download.totalChunks;
+            this.completedChunks = download.completedChunks.cardinality();
+            this.playableChunks = Math.max(0, download.completedChunks.nextClearBit(download.playheadChunk) - download.playheadChunk);
+            this.sources = download.workers.size();
+            download.foldRate();
+            this.bytesPerSecond = download.bytesPerSecond;
+            this.complete = download.isComplete();
+            this.verifying = download.verifying;
+            this.watchOnly = download.window != null;
+        }
+
+        public float getProgress() {
+            return totalChunks == 0 ? 100 : completedChunks * 100f / totalChunks;
+        }
     }
 
     private final ConcurrentHashMap<String, ActiveDownload> downloads = new ConcurrentHashMap<>();
+    // Bytes each peer has sent us over all downloads; FileServer's upload slots reward the generous ones
+    private final ConcurrentHashMap<String, LongAdder> receivedByPeer = new ConcurrentHashMap<>();
     private File bufferFolder;
     private FileManager fileManager;
+    private DiscoveryService discoveryService;
+    private DhtNode dhtNode; // Optional, null when the DHT is disabled
+    // Sends HAVE announcements to source peers without blocking the worker that received the chunk
+    private final ExecutorService haveExecutor = Executors.newFixedThreadPool(2);
+    // Reads completed files back for verification, away from the download locks and the writer
+    private final ExecutorService verifyExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "DownloadVerifier");
+        t.setDaemon(true);
+        return t;
+    });
+    // Received blocks are written here, so workers can go back to their sockets right away
+    private final BlockWriter blockWriter = BlockWriter.fromEnvironment();
+
+    // A range of blocks handed to the BlockWriter
+    private static class PendingWrite {
+        final ActiveDownload download;
+        final int fromBlock;
+        final int toBlock;
+        final String peerId;
+
+        PendingWrite(ActiveDownload download, int fromBlock, int toBlock, String peerId) {
+            this.download = download;
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+            this.peerId = peerId;
+        }
+    }
 
     public interface ChunkReceivedListener {
         void onChunkReceived(String fileName, int chunkIndex, int totalChunks, String peerIp);
     }
 
+    /** Fired once the file matched its content hash (and is seeded). */
     public interface DownloadCompleteListener {
         void onDownloadComplete(String fileName, String hash);
     }
 
+    public enum VerificationOutcome {
+        VERIFIED, // Matches its content hash
+        REFETCHING, // Mismatch: the wrong pieces are being downloaded again
+        FAILED // Still wrong after MAX_VERIFY_ATTEMPTS, the download was dropped
+    }
+
+    public interface VerificationListener {
+        void onVerification(String fileName, String hash, VerificationOutcome outcome, int badChunks);
+    }
+
     private ChunkReceivedListener chunkListener;
     private DownloadCompleteListener completeListener;
+    private VerificationListener verificationListener;
 
     public void setBufferFolder(File folder) {
         this.bufferFolder = folder;
@@ -96,6 +349,22 @@ public class DownloadManager {
         this.fileManager = fm;
     }
 
+    public void setDiscoveryService(DiscoveryService ds) {
+        this.discoveryService = ds;
+    }
+
+    public void setDhtNode(DhtNode dhtNode) {
+        this.dhtNode = dhtNode;
+    }
+
+    public String getLocalPeerId() {
+        return discoveryService != null ? discoveryService.getPeerId() : "UNKNOWN";
+    }
+
+    public int getLocalFileServerPort() {
+        return discoveryService != null ? discoveryService.getFileServerPort() : 0;
+    }
+
     public void setChunkReceivedListener(ChunkReceivedListener listener) {
         this.chunkListener = listener;
     }
@@ -104,16 +373,24 @@ public class DownloadManager {
         this.completeListener = listener;
     }
 
+    public void setVerificationListener(VerificationListener listener) {
+        this.verificationListener = listener;
+    }
+
     public void startDownload(String fileName, String hash, long size, Set<String> initialPeerIds,
                               java.util.Map<String, String> peerIdToIp, java.util.Map<String, Integer> peerIdToPort) {
-        if (downloads.containsKey(hash))
-            return;
+        startDownload(fileName, hash, size, initialPeerIds, peerIdToIp, peerIdToPort, PieceStorage.Type.fromEnvironment());
+    }
 
-        // Validate peers
-        if (initialPeerIds == null || initialPeerIds.isEmpty()) {
-            System.err.println("No peers available for download: " + fileName);
+    /**
+     * Starts a download into the given storage backend (FILE and MMAP write to the buffer folder,
+     * MEMORY keeps everything on the heap and is not seeded from disk afterwards).
+     */
+    public void startDownload(String fileName, String hash, long size, Set<String> initialPeerIds,
+                              java.util.Map<String, String> peerIdToIp, java.util.Map<String, Integer> peerIdToPort,
+                              PieceStorage.Type storageType) {
+        if (downloads.containsKey(hash) || !hasPeers(fileName, initialPeerIds))
             return;
-        }
 
         // Check buffer folder from FileManager first, then fallback to local
         File targetBufferFolder = bufferFolder;
@@ -128,131 +405,960 @@ public class DownloadManager {
 
         File outFile = new File(targetBufferFolder, fileName);
         ActiveDownload download = new ActiveDownload(fileName, hash, size, outFile);
-        download.sources.addAll(initialPeerIds);
 
-        downloads.put(hash, download);
-        System.out.println("Started download: " + fileName);
-
-        // Pre-allocate file with full size so VLC knows the file size
-        try (RandomAccessFile raf = new RandomAccessFile(outFile, "rw")) {
-            raf.setLength(size);
-            System.out.println("Pre-allocated file: " + fileName + " (" + size + " bytes)");
+        // File backends pre-allocate the file with full size so VLC knows the file size
+        try {
+            download.storage = PieceStorage.open(storageType, outFile, size, false);
+            System.out.println("Opened " + storageType + " storage for " + fileName + " (" + size + " bytes)");
         } catch (IOException e) {
-            System.err.println("Failed to pre-allocate file: " + e.getMessage());
+            System.err.println("Failed to open storage for " + fileName + ": " + e.getMessage());
+            return;
         }
 
-        // Start workers and distribute chunks in round-robin fashion (Torrent-style)
-        int peerCount = initialPeerIds.size();
-        String[] peerIdArray = initialPeerIds.toArray(new String[0]);
-        
-        for (int i = 0; i < peerCount; i++) {
-            String peerId = peerIdArray[i];
+        begin(download, initialPeerIds, peerIdToIp, peerIdToPort);
+    }
+
+    /**
+     * Starts a watch-only download: nothing touches the disk and memory stays at STREAM_WINDOW_MB
+     * however long the video is. Only the window around the playhead (moved by readStream) is
+     * fetched; chunks that fall out of it are dropped and fetched again if playback comes back.
+     * The download never becomes a seeded file; stop it with cancelDownload().
+     */
+    public void startStream(String fileName, String hash, long size, Set<String> initialPeerIds,
+                            java.util.Map<String, String> peerIdToIp, java.util.Map<String, Integer> peerIdToPort) {
+        if (downloads.containsKey(hash) || !hasPeers(fileName, initialPeerIds))
+            return;
+
+        ActiveDownload download = new ActiveDownload(fileName, hash, size, null);
+        StreamWindowStorage window = new StreamWindowStorage(size, StreamWindowStorage.capacityFromEnvironment());
+        window.setEvictionListener(chunkIndex -> onChunkEvicted(download, chunkIndex));
+        download.window = window;
+        download.storage = window;
+        System.out.println("Streaming " + fileName + " through a " + window.getCapacityChunks() + "-chunk window (" + size + " bytes)");
+
+        begin(download, initialPeerIds, peerIdToIp, peerIdToPort);
+    }
+
+    private boolean hasPeers(String fileName, Set<String> initialPeerIds) {
+        if (initialPeerIds == null || initialPeerIds.isEmpty()) {
+            System.err.println("No peers available for download: " + fileName);
+            return false;
+        }
+        return true;
+    }
+
+    private void begin(ActiveDownload download, Set<String> initialPeerIds,
+                       java.util.Map<String, String> peerIdToIp, java.util.Map<String, Integer> peerIdToPort) {
+        String fileName = download.fileName;
+        String hash = download.hash;
+        download.sources.addAll(initialPeerIds);
+        if (downloads.putIfAbsent(hash, download) != null) {
+            blockWriter.close(download.storage);
+            return;
+        }
+        System.out.println("Started download: " + fileName);
+
+        // Start one worker per peer. Workers pull chunks from nextChunk(): the urgent window near the
+        // playback position is fetched in order, everything else rarest-first across the swarm.
+        for (String peerId : initialPeerIds) {
             if (peerId == null || peerId.trim().isEmpty()) {
-                System.err.println("Skipping null or empty peer ID at index " + i);
+                System.err.println("Skipping null or empty peer ID");
                 continue;
             }
-            
+
             String peerIp = peerIdToIp.get(peerId);
             Integer peerPort = peerIdToPort.get(peerId);
-            
+
             if (peerIp == null || peerPort == null) {
                 System.err.println("Skipping peer " + peerId + " - missing IP or port");
                 continue;
             }
-            
-            DownloadWorker worker = new DownloadWorker(peerIp, peerPort, peerId, this);
-            download.workers.put(peerId, worker);
-            new Thread(worker, "DownloadWorker-" + peerId).start();
+
+            startWorker(download, peerId, peerIp, peerPort);
         }
-        
-        // Distribute chunks across peers in round-robin fashion
-        // This ensures each peer downloads different chunks (like BitTorrent)
+
         if (download.workers.isEmpty()) {
             System.err.println("No valid workers created for download: " + fileName);
             downloads.remove(hash);
+            blockWriter.close(download.storage);
             return;
         }
-        
-        String[] workerPeerIds = download.workers.keySet().toArray(new String[0]);
-        int workerCount = workerPeerIds.length;
-        
-        System.out.println("\n╔══════════════════════════════════════════════════════════════╗");
-        System.out.println("║ CHUNK DISTRIBUTION - Round Robin (Torrent-style)");
-        System.out.println("╠══════════════════════════════════════════════════════════════╣");
-        
-        for (int chunkIndex = 0; chunkIndex < download.totalChunks; chunkIndex++) {
-            int peerIndex = chunkIndex % workerCount;
-            String assignedPeerId = workerPeerIds[peerIndex];
-            DownloadWorker worker = download.workers.get(assignedPeerId);
-            
-            if (worker != null) {
-                worker.queueTask(hash, chunkIndex);
-                download.inProgressChunks.set(chunkIndex);
-                
-                System.out.println("║ Chunk " + String.format("%3d", chunkIndex) + " → Peer " + assignedPeerId);
+
+        findDhtProviders(download);
+    }
+
+    // Providers outside the search flood's reach are found through the DHT by content hash
+    private void findDhtProviders(ActiveDownload download) {
+        DhtNode dht = dhtNode;
+        if (dht == null)
+            return;
+        haveExecutor.submit(() -> {
+            for (DhtNode.Provider provider : dht.findProviders(download.hash)) {
+                System.out.println("DEBUG DHT: Provider " + provider.peerId + " @ " + provider.ip + ":" + provider.port + " for " + download.fileName);
+                addSource(download.hash, provider.peerId, provider.ip, provider.port);
             }
-        }
-        
-        System.out.println("╚══════════════════════════════════════════════════════════════╝\n");
+        });
     }
 
-    public ActiveDownload getDownload(String hash) {
-        return downloads.get(hash);
+    private void startWorker(ActiveDownload download, String peerId, String peerIp, int peerPort) {
+        DownloadWorker worker = new DownloadWorker(peerIp, peerPort, peerId, download.hash, this);
+        DownloadWorker existing = download.workers.putIfAbsent(peerId, worker);
+        // One that is on its way out (finished or gave up) is replaced rather than counted on
+        if (existing != null && (!existing.isFinishing() || !download.workers.replace(peerId, existing, worker)))
+            return;
+        download.peerAddresses.put(peerId, new InetSocketAddress(peerIp, peerPort));
+        synchronized (download) {
+            download.sources.add(peerId);
+        }
+        new Thread(worker, "DownloadWorker-" + peerId).start();
+        System.out.println("Started worker for " + download.fileName + " from peer " + peerId + " @ " + peerIp + ":" + peerPort);
     }
 
-    public void receiveChunk(String hash, int chunkIndex, byte[] data, String peerIp) {
+    /**
+     * Adds a peer that can serve (part of) a download, e.g. another downloader learned from a
+     * have-bitmap response or a HAVE announcement. No-op for ourselves or already known sources.
+     */
+    public void addSource(String hash, String peerId, String peerIp, int peerPort) {
         ActiveDownload download = downloads.get(hash);
+        if (download == null || peerId == null || peerIp == null || peerPort <= 0)
+            return;
+        if (peerId.equals(getLocalPeerId()) || download.workers.containsKey(peerId))
+            return;
+        synchronized (download) {
+            if (download.isComplete())
+                return;
+        }
+        startWorker(download, peerId, peerIp, peerPort);
+    }
+
+    /**
+     * Stops a download (e.g. a watch-only stream the user closed): workers exit, waiting stream
+     * readers return, and the storage is closed once its queued writes are done. Data already
+     * written to a file stays where it is.
+     */
+    public void cancelDownload(String hash) {
+        ActiveDownload download = downloads.remove(hash);
         if (download == null)
             return;
+        for (DownloadWorker worker : download.workers.values())
+            worker.stop();
+        synchronized (download) {
+            download.notifyAll();
+        }
+        blockWriter.close(download.storage);
+        System.out.println("Cancelled download: " + download.fileName);
+    }
 
+    // Only the worker still registered for its peer clears the peer's state; a replacement keeps it
+    void removeWorker(String hash, String peerId, DownloadWorker worker) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null || !download.workers.remove(peerId, worker))
+            return;
         synchronized (download) {
-            if (download.completedChunks.get(chunkIndex))
-                return; // Duplicate check
+            download.sources.remove(peerId);
+            download.setPeerHaves(peerId, new BitSet());
+            download.peerHaves.remove(peerId);
+        }
+    }
+
+    /**
+     * Picks the next block a worker should request from the given peer and marks it requested.
+     * Blocks of the urgent window (the chunks right after the first missing one) go first and in
+     * order, so the piece playback waits on is spread over every peer that has it. Then blocks of
+     * chunks already started, so pieces finish (and get announced) early, then rarest-first.
+     * Once every missing block is requested (endgame), blocks other workers are still fetching
+     * are handed out again; the slower duplicate is cancelled when the first copy arrives.
+     * @param requested blocks this worker already has in flight
+     * @return block index, NO_CHUNK_AVAILABLE or DOWNLOAD_FINISHED
+     */
+    public int nextBlock(String hash, String peerId, Set<Integer> requested) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return DOWNLOAD_FINISHED;
+
+        synchronized (download) {
+            if (download.isComplete())
+                return finishWorker(download, peerId);
 
-            try (RandomAccessFile raf = new RandomAccessFile(download.outputFile, "rw")) {
-                long offset = (long) chunkIndex * CHUNK_SIZE;
-                raf.seek(offset);
-                raf.write(data);
-
-                download.completedChunks.set(chunkIndex);
-                download.inProgressChunks.clear(chunkIndex);
-                
-                int totalReceived = download.completedChunks.cardinality();
-                int lastConsecutive = download.getLastConsecutiveChunk();
-                int firstMissing = download.getFirstMissingChunk();
-                float progress = download.getProgress();
-                
-                System.out.println("\n╔════════════════════════════════════════════════════════════════╗");
-                System.out.println("║ CHUNK RECEIVED - " + download.fileName);
-                System.out.println("╠════════════════════════════════════════════════════════════════╣");
-                System.out.println("║ Chunk Index: " + chunkIndex + " / " + download.totalChunks);
-                System.out.println("║ From Peer: " + peerIp);
-                System.out.println("║ Total Received: " + totalReceived + " / " + download.totalChunks);
-                System.out.println("║ Last Consecutive: " + lastConsecutive + " (chunks 0-" + lastConsecutive + " ready)");
-                System.out.println("║ First Missing: " + firstMissing);
-                System.out.println(String.format("║ Progress: %.1f%%", progress));
-                System.out.println("╚════════════════════════════════════════════════════════════════╝\n");
-
-                // Notify GUI
-                if (chunkListener != null) {
-                    chunkListener.onChunkReceived(download.fileName, chunkIndex, download.totalChunks, peerIp);
+            BitSet haves = download.peerHaves.get(peerId);
+            if (haves == null)
+                return NO_CHUNK_AVAILABLE;
+
+            // 0. Container index first: the player can't start (or seek) without moov / Cues
+            for (int i = download.priorityChunks.nextSetBit(0); i >= 0; i = download.priorityChunks.nextSetBit(i + 1)) {
+                if (haves.get(i) && !download.completedChunks.get(i)) {
+                    int block = download.firstUnassignedBlock(i);
+                    if (block >= 0)
+                        return assignBlock(download, block);
                 }
+            }
+
+            // 1. Urgent window: sequential, for progressive playback
+            int first = download.getUrgentStart();
+            int limit = download.getFetchLimit();
+            int urgentEnd = Math.min(limit, first + URGENT_WINDOW);
+            for (int i = first; i < urgentEnd; i++) {
+                if (haves.get(i) && !download.completedChunks.get(i)) {
+                    int block = download.firstUnassignedBlock(i);
+                    if (block >= 0)
+                        return assignBlock(download, block);
+                }
+            }
+
+            // 2. Started chunks first, then rarest-first over everything else this peer can serve
+            int best = -1;
+            boolean bestStarted = false;
+            for (int i = haves.nextSetBit(download.getScanStart()); i >= 0 && i < limit; i = haves.nextSetBit(i + 1)) {
+                if (download.completedChunks.get(i) || download.firstUnassignedBlock(i) < 0)
+                    continue;
+                boolean started = download.isStarted(i);
+                if (best < 0 || (started && !bestStarted)
+                        || (started == bestStarted && download.availability[i] < download.availability[best])) {
+                    best = i;
+                    bestStarted = started;
+                }
+            }
+            if (best >= 0)
+                return assignBlock(download, download.firstUnassignedBlock(best));
+
+            // 3. Endgame: everything missing is already requested, race the stragglers
+            //    (for watch-only downloads: everything missing in the window)
+            boolean endgame = download.window != null
+                    ? download.allAssigned(download.playheadChunk, limit)
+                    : download.receivedBlocks.cardinality() + download.requestedBlocks.cardinality()
+                            + download.writingBlocks.cardinality() >= download.totalBlocks;
+            if (endgame) {
+                int endBlock = limit >= download.totalChunks ? download.totalBlocks : limit * BLOCKS_PER_CHUNK;
+                for (int b = download.requestedBlocks.nextSetBit(0); b >= 0 && b < endBlock; b = download.requestedBlocks.nextSetBit(b + 1)) {
+                    if (haves.get(b / BLOCKS_PER_CHUNK) && !requested.contains(b))
+                        return b;
+                }
+            }
+            return NO_CHUNK_AVAILABLE;
+        }
+    }
+
+    private int assignBlock(ActiveDownload download, int block) {
+        download.requestedBlocks.set(block);
+        download.inProgressChunks.set(block / BLOCKS_PER_CHUNK);
+        return block;
+    }
+
+    /**
+     * Whole-chunk variant of nextBlock() for peers that only speak the per-chunk protocol:
+     * returns a chunk none of whose blocks are taken yet and marks all of them requested.
+     * @return chunk index, NO_CHUNK_AVAILABLE or DOWNLOAD_FINISHED
+     */
+    public int nextChunk(String hash, String peerId) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return DOWNLOAD_FINISHED;
+
+        synchronized (download) {
+            if (download.isComplete())
+                return finishWorker(download, peerId);
 
-                if (download.isComplete()) {
-                    System.out.println("Download complete: " + download.fileName);
-                    if (completeListener != null) {
-                        completeListener.onDownloadComplete(download.fileName, hash);
+            BitSet haves = download.peerHaves.get(peerId);
+            if (haves == null)
+                return NO_CHUNK_AVAILABLE;
+
+            int first = download.getUrgentStart();
+            int limit = download.getFetchLimit();
+            int urgentEnd = Math.min(limit, first + URGENT_WINDOW);
+            int best = -1;
+            for (int i = download.priorityChunks.nextSetBit(0); i >= 0 && best < 0; i = download.priorityChunks.nextSetBit(i + 1)) {
+                if (isCandidate(download, haves, i))
+                    best = i;
+            }
+            for (int i = first; i < urgentEnd && best < 0; i++) {
+                if (isCandidate(download, haves, i))
+                    best = i;
+            }
+            if (best < 0) {
+                for (int i = haves.nextSetBit(download.getScanStart()); i >= 0 && i < limit; i = haves.nextSetBit(i + 1)) {
+                    if (isCandidate(download, haves, i) && (best < 0 || download.availability[i] < download.availability[best])) {
+                        best = i;
+                        if (download.availability[i] <= 1)
+                            break; // Can't get any rarer
                     }
-                    // Verify Hash?
                 }
+            }
+            if (best < 0)
+                return NO_CHUNK_AVAILABLE;
+
+            int start = best * BLOCKS_PER_CHUNK;
+            download.requestedBlocks.set(start, start + download.blockCount(best));
+            download.inProgressChunks.set(best);
+            return best;
+        }
+    }
+
+    private boolean isCandidate(ActiveDownload download, BitSet haves, int chunkIndex) {
+        return haves.get(chunkIndex)
+                && !download.completedChunks.get(chunkIndex)
+                && !download.isStarted(chunkIndex);
+    }
+
+    // A peer could not deliver a chunk: release its blocks for other workers and stop assuming the peer has it
+    public void chunkFailed(String hash, int chunkIndex, String peerId) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return;
+        synchronized (download) {
+            int start = chunkIndex * BLOCKS_PER_CHUNK;
+            download.requestedBlocks.clear(start, start + download.blockCount(chunkIndex));
+            download.updateInProgress(chunkIndex);
+            download.clearPeerHave(peerId, chunkIndex);
+        }
+    }
+
+    // Same for a single block
+    public void blockFailed(String hash, int blockIndex, String peerId) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return;
+        int chunkIndex = blockIndex / BLOCKS_PER_CHUNK;
+        synchronized (download) {
+            download.requestedBlocks.clear(blockIndex);
+            download.updateInProgress(chunkIndex);
+            download.clearPeerHave(peerId, chunkIndex);
+        }
+    }
+
+    /**
+     * A block request that was refused for now (the peer choked us) or cancelled: the block becomes
+     * unassigned again. Unlike blockFailed this says nothing about the peer lacking its chunk.
+     */
+    public void releaseBlock(String hash, int blockIndex) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return;
+        synchronized (download) {
+            download.requestedBlocks.clear(blockIndex);
+            download.updateInProgress(blockIndex / BLOCKS_PER_CHUNK);
+        }
+    }
+
+    // Same for a whole chunk requested on the per-chunk protocol
+    public void releaseChunk(String hash, int chunkIndex) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return;
+        synchronized (download) {
+            int start = chunkIndex * BLOCKS_PER_CHUNK;
+            download.requestedBlocks.clear(start, start + download.blockCount(chunkIndex));
+            download.updateInProgress(chunkIndex);
+        }
+    }
+
+    // Full have-bitmap received from a source peer
+    public void updatePeerHaves(String hash, String peerId, BitSet haves) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return;
+        synchronized (download) {
+            download.setPeerHaves(peerId, haves);
+        }
+    }
+
+    // Incremental HAVE from a peer that just completed a chunk
+    public void onRemoteHave(String hash, String peerId, int chunkIndex) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return;
+        synchronized (download) {
+            download.addPeerHave(peerId, chunkIndex);
+        }
+    }
+
+    /**
+     * Our have-bitmap for a download in progress, or null if we are not downloading this hash.
+     */
+    public BitSet getCompletedChunks(String hash) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return null;
+        synchronized (download) {
+            return (BitSet) download.completedChunks.clone();
+        }
+    }
+
+    /**
+     * Reads a chunk we already hold from an in-progress download, so downloading peers can seed it.
+     * @return number of bytes read, or -1 if the chunk isn't available here
+     */
+    public int readCompletedChunk(String hash, int chunkIndex, byte[] buffer) throws IOException {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null || chunkIndex < 0 || chunkIndex >= download.totalChunks)
+            return -1;
+        synchronized (download) {
+            if (!download.completedChunks.get(chunkIndex))
+                return -1;
+        }
+
+        // Completed chunks are only rewritten after verification clears them, so read outside the lock
+        long offset = (long) chunkIndex * CHUNK_SIZE;
+        int length = (int) Math.min(CHUNK_SIZE, download.fileSize - offset);
+        return download.storage.read(offset, buffer, 0, length);
+    }
+
+    /**
+     * Reports where the player is (e.g. from VLC position events). The urgent window follows it;
+     * a jump (seek) also cancels in-flight requests outside the new window, so the pipeline slots
+     * go to the pieces playback now waits on.
+     */
+    public void setPlaybackPosition(String hash, long offset) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null || offset < 0 || offset >= download.fileSize)
+            return;
+        int chunkIndex = (int) (offset / CHUNK_SIZE);
+        boolean seek;
+        synchronized (download) {
+            seek = chunkIndex < download.lastPlayerChunk - 1 || chunkIndex > download.lastPlayerChunk + SEEK_JUMP_CHUNKS;
+            download.lastPlayerChunk = chunkIndex;
+        }
+        movePlayhead(download, chunkIndex, seek);
+    }
+
+    private void movePlayhead(ActiveDownload download, int chunkIndex, boolean seek) {
+        int urgentEnd;
+        synchronized (download) {
+            if (download.playheadChunk == chunkIndex && !seek)
+                return;
+            download.playheadChunk = chunkIndex;
+            if (download.window != null)
+                download.window.setPlayheadChunk(chunkIndex);
+            if (!seek)
+                return;
+            urgentEnd = Math.min(download.totalChunks, download.getUrgentStart() + URGENT_WINDOW);
+        }
+
+        // Requests for anything but the new urgent window and the container index are stale now;
+        // their blocks become unassigned and are requested again in the new order
+        int cancelled = 0;
+        for (DownloadWorker worker : download.workers.values()) {
+            for (int block : worker.getInFlightBlocks()) {
+                int chunk = block / BLOCKS_PER_CHUNK;
+                boolean wanted = (chunk >= chunkIndex && chunk < urgentEnd);
+                synchronized (download) {
+                    wanted |= download.priorityChunks.get(chunk);
+                }
+                if (wanted || !worker.cancelBlock(block))
+                    continue;
+                releaseBlock(download.hash, block);
+                cancelled++;
+            }
+        }
+        System.out.println("DEBUG SEEK: " + download.fileName + " -> chunk " + chunkIndex + ", cancelled " + cancelled + " stale requests");
+    }
+
+    /**
+     * Reads playback data, waiting up to timeoutMs for its chunk to arrive. The read position
+     * moves the playhead (a non-sequential read counts as a seek), so fetching continues from
+     * there and a watch-only window evicts what lies behind it.
+     * @return bytes read (never past the end of the chunk), or -1 if the download is gone or the wait timed out
+     */
+    public int readStream(String hash, long offset, byte[] buffer, int len, long timeoutMs) throws InterruptedException {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null || offset < 0 || offset >= download.fileSize)
+            return -1;
+        int chunkIndex = (int) (offset / CHUNK_SIZE);
+        int length = (int) Math.min(len, Math.min((long) (chunkIndex + 1) * CHUNK_SIZE, download.fileSize) - offset);
+        boolean seek;
+        synchronized (download) {
+            seek = download.lastReadChunk >= 0 && (chunkIndex < download.lastReadChunk || chunkIndex > download.lastReadChunk + 1);
+            download.lastReadChunk = chunkIndex;
+        }
+        movePlayhead(download, chunkIndex, seek);
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            synchronized (download) {
+                while (!download.completedChunks.get(chunkIndex)) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0 || downloads.get(hash) != download)
+                        return -1;
+                    download.wait(remaining);
+                }
+            }
+            try {
+                return download.storage.read(offset, buffer, 0, length);
             } catch (IOException e) {
-                e.printStackTrace();
+                // Evicted between the check and the read; it gets fetched again
             }
         }
     }
 
+    /** Bytes from offset onwards that are already here without a gap (what playback can use right now). */
+    public long getContiguousBytes(String hash, long offset) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null || offset < 0 || offset >= download.fileSize)
+            return 0;
+        synchronized (download) {
+            int firstMissing = download.completedChunks.nextClearBit((int) (offset / CHUNK_SIZE));
+            return Math.max(0, Math.min(download.fileSize, (long) firstMissing * CHUNK_SIZE) - offset);
+        }
+    }
+
+    /** Smoothed download rate in bytes per second over all sources. */
+    public double getDownloadRate(String hash) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return 0;
+        synchronized (download) {
+            download.foldRate();
+            return download.bytesPerSecond;
+        }
+    }
+
+    public boolean isDownloadComplete(String hash) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return false;
+        synchronized (download) {
+            return download.isComplete();
+        }
+    }
+
+    /**
+     * Media duration in seconds from the container header (MP4 mvhd, Matroska Info), read as soon
+     * as the chunks holding it have arrived; 0 while unknown.
+     */
+    public double getMediaDuration(String hash) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return 0;
+        MediaContainer.Layout layout = inspectContainer(download);
+        return layout != null ? layout.durationSeconds : 0;
+    }
+
+    /**
+     * True once the container index the player needs to start (moov, Matroska SeekHead/Cues) is
+     * here. Watch-only streams report true: the player fetches the index itself through range requests.
+     */
+    public boolean isContainerIndexReady(String hash) {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return false;
+        synchronized (download) {
+            if (download.window != null || download.isComplete())
+                return true;
+            if (download.layout == null)
+                return false;
+            BitSet missing = (BitSet) download.priorityChunks.clone();
+            missing.andNot(download.completedChunks);
+            return missing.isEmpty();
+        }
+    }
+
+    // Re-reads the container header after a chunk arrived and moves the index regions it points
+    // to (and the chunk it needs next to get further) to the front of the queue
+    private void updateContainerPriority(ActiveDownload download) {
+        MediaContainer.Layout layout = inspectContainer(download);
+        if (layout == null)
+            return;
+        synchronized (download) {
+            BitSet priority = new BitSet(download.totalChunks);
+            for (long[] range : layout.indexRanges) {
+                if (range[1] > range[0])
+                    priority.set((int) (range[0] / CHUNK_SIZE), (int) ((range[1] - 1) / CHUNK_SIZE) + 1);
+            }
+            if (layout.missingOffset >= 0)
+                priority.set((int) (layout.missingOffset / CHUNK_SIZE));
+            priority.clear(download.totalChunks, Math.max(download.totalChunks, priority.length()));
+            if (!priority.equals(download.priorityChunks)) {
+                download.priorityChunks = priority;
+                System.out.println("DEBUG: " + layout.format + " index of " + download.fileName + " -> priority chunks " + priority);
+            }
+        }
+    }
+
+    // Parses the container from the chunks we hold; cached once nothing is missing anymore
+    private MediaContainer.Layout inspectContainer(ActiveDownload download) {
+        synchronized (download) {
+            if (download.layout != null)
+                return download.layout;
+        }
+        try {
+            MediaContainer.Layout layout = MediaContainer.parse((offset, buffer, len) -> readAvailable(download, offset, buffer, len), download.fileSize);
+            if (layout.isComplete()) {
+                synchronized (download) {
+                    download.layout = layout;
+                }
+            }
+            return layout;
+        } catch (IOException e) {
+            System.err.println("DEBUG: Could not inspect container of " + download.fileName + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Reads a range if every chunk it touches is complete
+    private boolean readAvailable(ActiveDownload download, long offset, byte[] buffer, int len) {
+        if (offset < 0 || offset + len > download.fileSize)
+            return false;
+        synchronized (download) {
+            int first = (int) (offset / CHUNK_SIZE);
+            int last = (int) ((offset + len - 1) / CHUNK_SIZE);
+            if (download.completedChunks.nextClearBit(first) <= last)
+                return false;
+        }
+        try {
+            return download.storage.read(offset, buffer, 0, len) == len;
+        } catch (IOException e) {
+            return false; // Evicted from a stream window meanwhile
+        }
+    }
+
+    // The stream window dropped a chunk: forget it so it is fetched again when needed
+    private void onChunkEvicted(ActiveDownload download, int chunkIndex) {
+        synchronized (download) {
+            int start = chunkIndex * BLOCKS_PER_CHUNK;
+            download.completedChunks.clear(chunkIndex);
+            download.receivedBlocks.clear(start, start + download.blockCount(chunkIndex));
+            download.updateInProgress(chunkIndex);
+        }
+    }
+
+    // Tell every source peer that we now hold this chunk, so they can fetch it from us
+    private void announceHave(ActiveDownload download, int chunkIndex) {
+        String myPeerId = getLocalPeerId();
+        int myPort = getLocalFileServerPort();
+        if (myPort <= 0)
+            return; // Not serving, nothing to announce
+
+        for (DownloadWorker worker : download.workers.values()) {
+            haveExecutor.submit(() -> {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(worker.getPeerIp(), worker.getPeerPort()), 2000);
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+
+                    // Request: [Type(4)][Hash][PeerId][ListenPort(4)][ChunkIndex(4)]
+                    out.writeInt(Protocol.REQUEST_HAVE);
+                    Protocol.writeString(out, download.hash);
+                    Protocol.writeString(out, myPeerId);
+                    out.writeInt(myPort);
+                    out.writeInt(chunkIndex);
+                    out.flush();
+                    in.readByte(); // Ack
+                } catch (IOException e) {
+                    System.err.println("DEBUG: Failed to send HAVE " + chunkIndex + " to " + worker.getPeerId() + ": " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    public ActiveDownload getDownload(String hash) {
+        return downloads.get(hash);
+    }
+
+    /**
+     * Queues one block for writing as soon as it arrives. Blocks (backpressure) while the write
+     * queue is full. Returns true if this was the last missing block of its chunk.
+     */
+    public boolean receiveBlock(String hash, int blockIndex, byte[] data, String peerId) throws InterruptedException {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null || blockIndex < 0 || blockIndex >= download.totalBlocks)
+            return false;
+        countReceived(peerId, data.length);
+        int chunkIndex = blockIndex / BLOCKS_PER_CHUNK;
+
+        boolean lastBlock;
+        synchronized (download) {
+            if (download.receivedBlocks.get(blockIndex) || download.writingBlocks.get(blockIndex))
+                return false; // Endgame duplicate
+            if (data.length != download.blockLength(blockIndex)) {
+                System.err.println("DEBUG: Block " + blockIndex + " from " + peerId + " has wrong length " + data.length);
+                download.requestedBlocks.clear(blockIndex);
+                download.updateInProgress(chunkIndex);
+                return false;
+            }
+            download.writingBlocks.set(blockIndex);
+            download.requestedBlocks.clear(blockIndex);
+            cancelDuplicates(download, blockIndex, blockIndex + 1, peerId);
+            lastBlock = download.allBlocksArrived(chunkIndex);
+        }
+
+        queueWrite(new PendingWrite(download, blockIndex, blockIndex + 1, peerId), (long) blockIndex * BLOCK_SIZE, data);
+        return lastBlock;
+    }
+
+    // Whole chunk from a peer on the per-chunk protocol
+    public void receiveChunk(String hash, int chunkIndex, byte[] data, String peerIp) throws InterruptedException {
+        ActiveDownload download = downloads.get(hash);
+        if (download == null)
+            return;
+        countReceived(peerIp, data.length);
+
+        int start = chunkIndex * BLOCKS_PER_CHUNK;
+        int end;
+        synchronized (download) {
+            if (download.completedChunks.get(chunkIndex) || download.allBlocksArrived(chunkIndex))
+                return; // Duplicate check
+            end = start + download.blockCount(chunkIndex);
+            download.writingBlocks.set(start, end);
+            download.requestedBlocks.clear(start, end);
+            cancelDuplicates(download, start, end, peerIp);
+        }
+
+        queueWrite(new PendingWrite(download, start, end, peerIp), (long) chunkIndex * CHUNK_SIZE, data);
+    }
+
+    private void queueWrite(PendingWrite pending, long offset, byte[] data) throws InterruptedException {
+        try {
+            blockWriter.submit(pending.download.storage, offset, data, pending, this::onWritten);
+        } catch (InterruptedException e) {
+            synchronized (pending.download) {
+                pending.download.writingBlocks.clear(pending.fromBlock, pending.toBlock);
+                pending.download.updateInProgress(pending.fromBlock / BLOCKS_PER_CHUNK);
+            }
+            throw e;
+        }
+    }
+
+    // Runs on the BlockWriter thread once data is in the file
+    private void onWritten(BlockWriter.Write write, IOException error) {
+        PendingWrite pending = (PendingWrite) write.tag;
+        ActiveDownload download = pending.download;
+        int chunkIndex = pending.fromBlock / BLOCKS_PER_CHUNK;
+        boolean downloadComplete;
+        boolean inspect;
+        synchronized (download) {
+            download.writingBlocks.clear(pending.fromBlock, pending.toBlock);
+            // A write error, or a stream window that evicted the chunk again before we got here:
+            // the blocks become unassigned again and get re-requested
+            if (error != null || (download.window != null && !download.window.holds(write.offset, write.data.length))) {
+                download.updateInProgress(chunkIndex);
+                return;
+            }
+            if (downloads.get(download.hash) != download)
+                return; // Cancelled
+            download.receivedBlocks.set(pending.fromBlock, pending.toBlock);
+            download.recordReceived(write.data.length);
+            if (!download.allBlocksReceived(chunkIndex) || download.completedChunks.get(chunkIndex))
+                return;
+            downloadComplete = completeChunk(download, chunkIndex, pending.peerId);
+            inspect = download.layout == null && download.window == null && !download.isComplete();
+        }
+        chunkCompleted(download, chunkIndex, pending.peerId, downloadComplete);
+        if (inspect)
+            updateContainerPriority(download);
+    }
+
+    // Endgame duplicates of these blocks are now obsolete
+    private void cancelDuplicates(ActiveDownload download, int fromBlock, int toBlock, String receivedFrom) {
+        for (DownloadWorker worker : download.workers.values()) {
+            if (worker.getPeerId().equals(receivedFrom))
+                continue;
+            for (int b = fromBlock; b < toBlock; b++)
+                worker.cancelBlock(b);
+        }
+    }
+
+    // Marked under the download lock, so a restart after a failed verification sees the worker is leaving
+    private int finishWorker(ActiveDownload download, String peerId) {
+        DownloadWorker worker = download.workers.get(peerId);
+        if (worker != null)
+            worker.markFinishing();
+        return DOWNLOAD_FINISHED;
+    }
+
+    /**
+     * Called with the download lock held once every block of a chunk is on disk. Only updates the
+     * download's state; chunkCompleted() does the announcing once the lock is released.
+     * @return true if this was the last missing chunk
+     */
+    private boolean completeChunk(ActiveDownload download, int chunkIndex, String peerIp) {
+        download.completedChunks.set(chunkIndex);
+        download.inProgressChunks.clear(chunkIndex);
+        download.notifyAll(); // Wake stream readers waiting for this chunk
+
+        int totalReceived = download.completedChunks.cardinality();
+        int lastConsecutive = download.getLastConsecutiveChunk();
+        int firstMissing = download.getFirstMissingChunk();
+        float progress = download.getProgress();
+
+        System.out.println("\n╔════════════════════════════════════════════════════════════════╗");
+        System.out.println("║ CHUNK RECEIVED - " + download.fileName);
+        System.out.println("╠════════════════════════════════════════════════════════════════╣");
+        System.out.println("║ Chunk Index: " + chunkIndex + " / " + download.totalChunks);
+        System.out.println("║ From Peer: " + peerIp);
+        System.out.println("║ Total Received: " + totalReceived + " / " + download.totalChunks);
+        System.out.println("║ Last Consecutive: " + lastConsecutive + " (chunks 0-" + lastConsecutive + " ready)");
+        System.out.println("║ First Missing: " + firstMissing);
+        System.out.println(String.format("║ Progress: %.1f%%", progress));
+        System.out.println("╚════════════════════════════════════════════════════════════════╝\n");
+
+        if (!download.isComplete())
+            return false;
+        System.out.println("Download complete: " + download.fileName + " (" + blockWriter.getStats() + ")");
+        if (download.window == null)
+            download.verifying = true;
+        return true;
+    }
+
+    // Runs after completeChunk() without the download lock: HAVE announcements, listeners and verification
+    private void chunkCompleted(ActiveDownload download, int chunkIndex, String peerIp, boolean downloadComplete) {
+        announceHave(download, chunkIndex);
+
+        // Notify GUI
+        if (chunkListener != null) {
+            chunkListener.onChunkReceived(download.fileName, chunkIndex, download.totalChunks, peerIp);
+        }
+
+        if (!downloadComplete)
+            return;
+        if (download.window != null) {
+            // Watch-only: the file was never held in full, there is nothing to check or seed
+            if (completeListener != null)
+                completeListener.onDownloadComplete(download.fileName, download.hash);
+            return;
+        }
+        verifyExecutor.submit(() -> verify(download));
+    }
+
+    /**
+     * Hashes the completed file with ContentHash from the verifier thread, without holding the
+     * download lock. A match makes it a seeded file and fires the complete listener. A mismatch
+     * asks a source for its piece digests to find the wrong chunks (all of them if none can say),
+     * clears them and restarts the workers; after MAX_VERIFY_ATTEMPTS the download is dropped.
+     */
+    private void verify(ActiveDownload download) {
+        long start = System.currentTimeMillis();
+        ContentHash.Result result;
+        try {
+            // Waits for the writes still queued (e.g. endgame duplicates), then fsyncs per WRITE_FSYNC before seeding
+            blockWriter.finish(download.storage);
+            result = ContentHash.compute(download.storage, download.fileSize);
+        } catch (IOException e) {
+            if (downloads.get(download.hash) == download)
+                System.err.println("Verification of " + download.fileName + " could not read the file: " + e.getMessage());
+            result = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return; // Shutting down
+        }
+        if (downloads.get(download.hash) != download)
+            return; // Cancelled meanwhile
+
+        if (result != null && result.contentId.equals(download.hash)) {
+            download.verifying = false;
+            System.out.println("✓ Verified " + download.fileName + " in " + (System.currentTimeMillis() - start) + " ms");
+            // Become a seeder: share the file under its known hash (in-memory downloads keep
+            // seeding from their storage instead)
+            if (fileManager != null && download.storage.getFile() != null)
+                fileManager.registerDownloadedFile(download.fileName, download.fileSize, download.hash, download.outputFile);
+            notifyVerification(download, VerificationOutcome.VERIFIED, 0);
+            if (completeListener != null)
+                completeListener.onDownloadComplete(download.fileName, download.hash);
+            return;
+        }
+
+        if (++download.verifyAttempts >= MAX_VERIFY_ATTEMPTS) {
+            System.err.println("✗ " + download.fileName + " still doesn't match its hash after " + download.verifyAttempts + " attempts, dropping it");
+            cancelDownload(download.hash);
+            notifyVerification(download, VerificationOutcome.FAILED, download.totalChunks);
+            return;
+        }
+
+        BitSet bad = result != null ? findBadChunks(download, result.pieceDigests) : null;
+        if (bad == null || bad.isEmpty()) {
+            bad = new BitSet(download.totalChunks);
+            bad.set(0, download.totalChunks);
+        }
+        System.err.println("✗ " + download.fileName + " doesn't match its hash, refetching " + bad.cardinality() + " chunk(s)");
+        synchronized (download) {
+            for (int chunk = bad.nextSetBit(0); chunk >= 0; chunk = bad.nextSetBit(chunk + 1)) {
+                int first = chunk * BLOCKS_PER_CHUNK;
+                download.completedChunks.clear(chunk);
+                download.receivedBlocks.clear(first, first + download.blockCount(chunk));
+            }
+            download.verifying = false;
+        }
+        notifyVerification(download, VerificationOutcome.REFETCHING, bad.cardinality());
+        for (Map.Entry<String, InetSocketAddress> peer : download.peerAddresses.entrySet())
+            startWorker(download, peer.getKey(), peer.getValue().getHostString(), peer.getValue().getPort());
+    }
+
+    // Compares our piece digests with a source's; null if no source could tell us its digests
+    private BitSet findBadChunks(ActiveDownload download, byte[][] ours) {
+        for (Map.Entry<String, InetSocketAddress> peer : download.peerAddresses.entrySet()) {
+            byte[][] theirs = fetchPieceHashes(peer.getValue(), download.hash);
+            if (theirs == null || theirs.length != ours.length)
+                continue;
+            if (!ContentHash.rootOf(theirs).equals(download.hash)) {
+                System.err.println("DEBUG: Piece hashes from " + peer.getKey() + " don't add up to the content id, ignoring them");
+                continue;
+            }
+            BitSet bad = new BitSet(ours.length);
+            for (int i = 0; i < ours.length; i++) {
+                if (!java.util.Arrays.equals(ours[i], theirs[i]))
+                    bad.set(i);
+            }
+            System.out.println("DEBUG: Piece hashes from " + peer.getKey() + ": " + bad.cardinality() + " of " + ours.length + " chunks differ");
+            return bad;
+        }
+        return null;
+    }
+
+    private byte[][] fetchPieceHashes(InetSocketAddress address, String hash) {
+        try (Socket socket = new Socket()) {
+            socket.connect(address, 3000);
+            socket.setSoTimeout(PIECE_HASH_TIMEOUT_MS); // The peer may have to read the whole file first
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(socket.getInputStream()));
+
+            // Request: [Type(4)][Hash] -> [Status(1)][Count(4)]{[Digest(32)]}
+            out.writeInt(Protocol.REQUEST_PIECE_HASHES);
+            Protocol.writeString(out, hash);
+            out.flush();
+            if (in.readByte() != 1)
+                return null;
+            int count = in.readInt();
+            if (count < 0 || count > Integer.MAX_VALUE / ContentHash.DIGEST_LENGTH)
+                return null;
+            byte[][] digests = new byte[count][ContentHash.DIGEST_LENGTH];
+            for (byte[] digest : digests)
+                in.readFully(digest);
+            return digests;
+        } catch (IOException e) {
+            System.err.println("DEBUG: No piece hashes from " + address + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void notifyVerification(ActiveDownload download, VerificationOutcome outcome, int badChunks) {
+        VerificationListener listener = verificationListener;
+        if (listener != null)
+            listener.onVerification(download.fileName, download.hash, outcome, badChunks);
+    }
+
+    private void countReceived(String peerId, int bytes) {
+        if (peerId != null)
+            receivedByPeer.computeIfAbsent(peerId, k -> new LongAdder()).add(bytes);
+    }
+
+    /** Total bytes received from a peer (by peer id) across all downloads, duplicates included. */
+    public long getBytesReceivedFrom(String peerId) {
+        LongAdder received = receivedByPeer.get(peerId);
+        return received != null ? received.sum() : 0;
+    }
+
     // Get all active downloads
     public ConcurrentHashMap<String, ActiveDownload> getActiveDownloads() {
         return downloads;
     }
+
+    /** Consistent status of every download, for UIs that redraw on their own schedule. */
+    public List<DownloadStatus> getStatusSnapshot() {
+        List<DownloadStatus> snapshot = new ArrayList<>();
+        for (ActiveDownload download : downloads.values()) {
+            synchronized (download) {
+                snapshot.add(new DownloadStatus(download));
+            }
+        }
+        snapshot.sort(Comparator.comparing(status -> status.fileName));
+        return snapshot;
+    }
 }
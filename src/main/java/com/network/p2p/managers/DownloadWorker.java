@@ -1,10 +1,18 @@
 package com.network.p2p.managers;
 
+import com.network.p2p.network.Protocol;
+import com.network.p2p.network.TransferSession;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
@@ -12,117 +20,317 @@ import java.util.logging.Logger;
 public class DownloadWorker implements Runnable {
     private static final Logger logger = Logger.getLogger(DownloadWorker.class.getName());
     private static final int CHUNK_SIZE = 256 * 1024;
+    private static final long BITMAP_REFRESH_MS = 5000;
+    private static final int MAX_CONSECUTIVE_FAILURES = 5;
+    private static final int PIPELINE_DEPTH = 16; // Block requests outstanding per session (one chunk's worth)
+    private static final long CHOKED_RETRY_MS = 2000; // Pause after a one-shot request was refused for lack of a slot
+    private static final byte[] CHOKED = new byte[0]; // fetchChunk's answer when the peer choked us
+
+    // Outcome of one loop step
+    private static final int STEP_IDLE = 0;
+    private static final int STEP_RECEIVED = 1;
+    private static final int STEP_FAILED = 2;
+    private static final int STEP_FINISHED = 3;
 
     private String peerIp;
     private int peerPort;
     private String peerId;
+    private String hash;
     private DownloadManager manager;
-    // Tuple: Hash, ChunkIndex
-    private BlockingQueue<String> taskQueue;
-    private boolean running = true;
+    private volatile boolean running = true;
+    private volatile boolean finishing = false; // Told the download is done, or gave up; about to exit
+    private long lastBitmapRefresh = 0;
+    private TransferSession session; // Null when the peer only speaks the per-chunk protocol
+    private final Map<Integer, TransferSession.Request> inFlight = new ConcurrentHashMap<>(); // blockIndex -> request
+    private final BlockingQueue<TransferSession.Request> answered = new LinkedBlockingQueue<>();
 
-    public DownloadWorker(String peerIp, int peerPort, String peerId, DownloadManager manager) {
+    public DownloadWorker(String peerIp, int peerPort, String peerId, String hash, DownloadManager manager) {
         this.peerIp = peerIp;
         this.peerPort = peerPort;
         this.peerId = peerId;
+        this.hash = hash;
         this.manager = manager;
-        this.taskQueue = new LinkedBlockingQueue<>();
     }
 
-    public void queueTask(String hash, int chunkIndex) {
-        taskQueue.offer(hash + ":" + chunkIndex);
+    public String getPeerIp() {
+        return peerIp;
+    }
+
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    public String getPeerId() {
+        return peerId;
     }
 
     @Override
     public void run() {
         System.out.println("DEBUG Worker[" + peerId + "]: Thread started for IP=" + peerIp);
+        int consecutiveFailures = 0;
+        boolean sessionsSupported = true;
         while (running) {
-            Socket socket = null;
             try {
-                // Peek task first
-                String task = taskQueue.poll(2, TimeUnit.SECONDS);
-                if (task == null)
-                    continue;
-
-                String[] parts = task.split(":");
-                String hash = parts[0];
-                int chunkIndex = Integer.parseInt(parts[1]);
-                
-                System.out.println("DEBUG Worker[" + peerId + "]: Processing chunk " + chunkIndex);
-                
-                // Check if chunk is already completed or being downloaded by another worker
-                DownloadManager.ActiveDownload download = manager.getDownload(hash);
-                if (download != null) {
-                    synchronized (download) {
-                        if (download.completedChunks.get(chunkIndex)) {
-                            System.out.println("DEBUG Worker[" + peerId + "]: Chunk " + chunkIndex + " already completed, skipping");
-                            continue;
-                        }
+                // Keep our view of the peer's chunks fresh (HAVE messages fill the gaps in between)
+                if (System.currentTimeMillis() - lastBitmapRefresh > BITMAP_REFRESH_MS) {
+                    fetchHaveBitmap();
+                    lastBitmapRefresh = System.currentTimeMillis();
+                }
+
+                if (sessionsSupported && (session == null || !session.isOpen())) {
+                    try {
+                        session = TransferSession.open(peerIp, peerPort, manager.getLocalPeerId());
+                        System.out.println("DEBUG Worker[" + peerId + "]: Transfer session opened");
+                    } catch (IOException e) {
+                        // Older peer: fall back to one connection per chunk
+                        System.out.println("DEBUG Worker[" + peerId + "]: No transfer session (" + e.getMessage() + "), using per-chunk requests");
+                        sessionsSupported = false;
                     }
                 }
 
-                System.out.println("DEBUG Worker[" + peerId + "]: Connecting to " + peerIp + ":" + peerPort + " for chunk " + chunkIndex);
-                socket = new Socket(peerIp, peerPort);
-                System.out.println("DEBUG Worker[" + peerId + "]: ✓ Connected to " + peerIp + ":" + peerPort);
-                
-                try (DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                        DataInputStream in = new DataInputStream(socket.getInputStream())) {
-
-                    // Request: [RequestType(4)][HashLen(4)][HashBytes][ChunkIndex(4)]
-                    out.writeInt(0); // 0 = CHUNK_REQUEST
-                    byte[] hashBytes = hash.getBytes();
-                    out.writeInt(hashBytes.length);
-                    out.write(hashBytes);
-                    out.writeInt(chunkIndex);
-                    out.flush();
-                    
-                    System.out.println("DEBUG Worker[" + peerId + "]: Request sent for chunk " + chunkIndex);
-
-                    // Response: [Status(1)][Len(4)][Data]
-                    byte status = in.readByte();
-                    System.out.println("DEBUG Worker[" + peerId + "]: Response status=" + status + " for chunk " + chunkIndex);
-                    
-                    if (status == 1) {
-                        int len = in.readInt();
-                        byte[] data = new byte[len];
-                        in.readFully(data);
-                        
-                        System.out.println("DEBUG Worker[" + peerId + "]: ✓ Received chunk " + chunkIndex + " (" + len + " bytes)");
-
-                        manager.receiveChunk(hash, chunkIndex, data, peerId);
-                        
-                        // First 15 chunks: fast (for VLC to start)
-                        // Rest: slower (for visible progressive streaming)
-                        if (chunkIndex < 15) {
-                            Thread.sleep(50); // Fast initial buffering
-                        } else {
-                            Thread.sleep(200); // Slower for visible progress
-                        }
-                    } else {
-                        System.err.println("DEBUG Worker[" + peerId + "]: ERROR - Peer returned error status for chunk " + chunkIndex);
-                        // Re-queue or mark failed? For now drop.
+                int result = session != null && session.isOpen() ? pipelineStep() : legacyStep();
+                if (result == STEP_FINISHED) {
+                    System.out.println("DEBUG Worker[" + peerId + "]: Download finished, stopping");
+                    break;
+                }
+                if (result == STEP_FAILED) {
+                    if (++consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                        System.err.println("DEBUG Worker[" + peerId + "]: Too many failures, giving up on this peer");
+                        break;
                     }
+                } else if (result == STEP_RECEIVED) {
+                    consecutiveFailures = 0;
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             } catch (Exception e) {
                 System.err.println("DEBUG Worker[" + peerId + "]: EXCEPTION - " + e.getClass().getName() + ": " + e.getMessage());
-                // logger.warning("Worker error (" + peerIp + "): " + e.getMessage());
-                // Basic retry or backoff could go here
+                if (++consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                    System.err.println("DEBUG Worker[" + peerId + "]: Too many failures, giving up on this peer");
+                    break;
+                }
                 try {
                     Thread.sleep(1000);
-                } catch (Exception ex) {
-                }
-            } finally {
-                if (socket != null && !socket.isClosed()) {
-                    try {
-                        socket.close();
-                    } catch (Exception e) {
-                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
         }
+
+        finishing = true; // A restart for this peer now replaces us
+        for (Map.Entry<Integer, TransferSession.Request> entry : inFlight.entrySet()) {
+            manager.releaseBlock(hash, entry.getKey());
+            if (session != null)
+                session.cancel(entry.getValue());
+        }
+        inFlight.clear();
+        if (session != null)
+            session.close();
+        manager.removeWorker(hash, peerId, this);
+    }
+
+    /**
+     * Keeps up to PIPELINE_DEPTH block requests outstanding on the session and handles one answer.
+     * Each block is written as soon as it arrives instead of waiting for its whole chunk.
+     */
+    private int pipelineStep() throws IOException, InterruptedException {
+        // A choked peer refuses requests, so leave the blocks to other peers until it unchokes us
+        while (inFlight.size() < PIPELINE_DEPTH && !session.isChoked()) {
+            int block = manager.nextBlock(hash, peerId, inFlight.keySet());
+            if (block == DownloadManager.DOWNLOAD_FINISHED)
+                return STEP_FINISHED;
+            if (block == DownloadManager.NO_CHUNK_AVAILABLE)
+                break;
+            int chunkIndex = block / DownloadManager.BLOCKS_PER_CHUNK;
+            int offset = (block % DownloadManager.BLOCKS_PER_CHUNK) * DownloadManager.BLOCK_SIZE;
+            TransferSession.Request request = session.request(hash, chunkIndex, offset, DownloadManager.BLOCK_SIZE);
+            inFlight.put(block, request);
+            request.result.whenComplete((data, error) -> answered.add(request));
+        }
+        if (inFlight.isEmpty()) {
+            // Peer has nothing we still need right now; wait for HAVEs or a bitmap refresh
+            Thread.sleep(500);
+            return STEP_IDLE;
+        }
+
+        TransferSession.Request done = answered.poll(500, TimeUnit.MILLISECONDS);
+        if (done == null)
+            return STEP_IDLE;
+        int block = done.chunkIndex * DownloadManager.BLOCKS_PER_CHUNK + done.offset / DownloadManager.BLOCK_SIZE;
+        if (!inFlight.remove(block, done) || done.result.isCancelled())
+            return STEP_IDLE; // A request we cancelled
+
+        byte[] data;
+        try {
+            data = done.result.join();
+        } catch (CompletionException e) {
+            System.err.println("DEBUG Worker[" + peerId + "]: Request for block " + block + " failed: " + e.getCause().getMessage());
+            manager.blockFailed(hash, block, peerId);
+            if (!session.isOpen()) {
+                // Session dropped: release everything it carried, a new one is opened next step
+                for (int other : inFlight.keySet())
+                    manager.blockFailed(hash, other, peerId);
+                inFlight.clear();
+            }
+            return STEP_FAILED;
+        }
+        if (data == null && done.choked) {
+            manager.releaseBlock(hash, block); // Not a failure, just not our turn
+            return STEP_IDLE;
+        }
+        if (data == null) {
+            System.err.println("DEBUG Worker[" + peerId + "]: ERROR - Peer returned error status for block " + block);
+            manager.blockFailed(hash, block, peerId);
+            return STEP_FAILED;
+        }
+        manager.receiveBlock(hash, block, data, peerId);
+        return STEP_RECEIVED;
+    }
+
+    private int legacyStep() throws IOException, InterruptedException {
+        int chunkIndex = manager.nextChunk(hash, peerId);
+        if (chunkIndex == DownloadManager.DOWNLOAD_FINISHED)
+            return STEP_FINISHED;
+        if (chunkIndex == DownloadManager.NO_CHUNK_AVAILABLE) {
+            Thread.sleep(500);
+            return STEP_IDLE;
+        }
+
+        System.out.println("DEBUG Worker[" + peerId + "]: Processing chunk " + chunkIndex);
+        try {
+            return deliver(chunkIndex, fetchChunk(chunkIndex));
+        } catch (IOException e) {
+            manager.chunkFailed(hash, chunkIndex, peerId);
+            throw e;
+        }
+    }
+
+    private int deliver(int chunkIndex, byte[] data) throws InterruptedException {
+        if (data == CHOKED) {
+            // Not a failure: the peer keeps us in its rotation and serves us once we get a slot
+            manager.releaseChunk(hash, chunkIndex);
+            Thread.sleep(CHOKED_RETRY_MS);
+            return STEP_IDLE;
+        }
+        if (data == null) {
+            System.err.println("DEBUG Worker[" + peerId + "]: ERROR - Peer returned error status for chunk " + chunkIndex);
+            manager.chunkFailed(hash, chunkIndex, peerId);
+            return STEP_FAILED;
+        }
+        manager.receiveChunk(hash, chunkIndex, data, peerId);
+        return STEP_RECEIVED;
+    }
+
+    /**
+     * Drops an outstanding request for a block that is no longer needed (e.g. another peer won the
+     * endgame race, or playback seeked away). The peer is told to skip it, so no bandwidth goes
+     * into the obsolete answer. Returns false if the block wasn't in flight here.
+     */
+    public boolean cancelBlock(int blockIndex) {
+        TransferSession.Request request = inFlight.remove(blockIndex);
+        if (request == null)
+            return false;
+        if (session != null) {
+            session.cancel(request);
+            System.out.println("DEBUG Worker[" + peerId + "]: Cancelled request for block " + blockIndex);
+        }
+        return true;
+    }
+
+    // Blocks this worker currently has requested on its session
+    public Set<Integer> getInFlightBlocks() {
+        return new HashSet<>(inFlight.keySet());
+    }
+
+    // Returns the chunk data, CHOKED if the peer has no upload slot for us now, or null on an error status
+    private byte[] fetchChunk(int chunkIndex) throws IOException {
+        System.out.println("DEBUG Worker[" + peerId + "]: Connecting to " + peerIp + ":" + peerPort + " for chunk " + chunkIndex);
+        try (Socket socket = new Socket(peerIp, peerPort);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream())) {
+
+            // Request: [RequestType(4)][HashLen(4)][HashBytes][ChunkIndex(4)]
+            out.writeInt(Protocol.REQUEST_CHUNK);
+            byte[] hashBytes = hash.getBytes();
+            out.writeInt(hashBytes.length);
+            out.write(hashBytes);
+            out.writeInt(chunkIndex);
+            out.flush();
+
+            System.out.println("DEBUG Worker[" + peerId + "]: Request sent for chunk " + chunkIndex);
+
+            // Response: [Status(1)][Len(4)][Data]
+            byte status = in.readByte();
+            System.out.println("DEBUG Worker[" + peerId + "]: Response status=" + status + " for chunk " + chunkIndex);
+            if (status == Protocol.DATA_CHOKED)
+                return CHOKED;
+            if (status != 1)
+                return null;
+
+            int len = in.readInt();
+            if (len < 0 || len > CHUNK_SIZE)
+                throw new IOException("Invalid chunk length: " + len);
+            byte[] data = new byte[len];
+            in.readFully(data);
+
+            System.out.println("DEBUG Worker[" + peerId + "]: ✓ Received chunk " + chunkIndex + " (" + len + " bytes)");
+            return data;
+        }
+    }
+
+    /**
+     * Asks the peer which chunks it can serve. The response also lists other peers downloading
+     * the same file, which become additional sources (turning a single seeder into a swarm).
+     */
+    private void fetchHaveBitmap() throws IOException {
+        try (Socket socket = new Socket(peerIp, peerPort);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream())) {
+
+            // Request: [Type(4)][Hash][PeerId][ListenPort(4)]
+            out.writeInt(Protocol.REQUEST_HAVE_BITMAP);
+            Protocol.writeString(out, hash);
+            Protocol.writeString(out, manager.getLocalPeerId());
+            out.writeInt(manager.getLocalFileServerPort());
+            out.flush();
+
+            // Response: [Status(1)][TotalChunks(4)][BitmapLen(4)][Bitmap][PeerCount(4)]{[PeerId][Ip][Port(4)]}
+            byte status = in.readByte();
+            if (status != 1) {
+                manager.updatePeerHaves(hash, peerId, new BitSet());
+                return;
+            }
+            in.readInt(); // Total chunks, implied by the file size we already know
+            int bitmapLen = in.readInt();
+            if (bitmapLen < 0 || bitmapLen > 1024 * 1024)
+                throw new IOException("Invalid bitmap length: " + bitmapLen);
+            byte[] bitmap = new byte[bitmapLen];
+            in.readFully(bitmap);
+            BitSet haves = BitSet.valueOf(bitmap);
+            manager.updatePeerHaves(hash, peerId, haves);
+            System.out.println("DEBUG Worker[" + peerId + "]: Peer holds " + haves.cardinality() + " chunks");
+
+            int peerCount = in.readInt();
+            for (int i = 0; i < peerCount; i++) {
+                String otherId = Protocol.readString(in);
+                String otherIp = Protocol.readString(in);
+                int otherPort = in.readInt();
+                manager.addSource(hash, otherId, otherIp, otherPort);
+            }
+        }
     }
 
     public void stop() {
         running = false;
     }
+
+    void markFinishing() {
+        finishing = true;
+    }
+
+    boolean isFinishing() {
+        return finishing;
+    }
 }
@@ -0,0 +1,126 @@
+package com.network.p2p.managers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Versioned view of the shared files for catalog sync (REQUEST_CATALOG).
+ * Every add, change or removal bumps the version and is recorded in a bounded change log,
+ * so a peer that already has version N only receives what changed after N. Peers that are
+ * too far behind, or that synced with a previous run (different epoch), get a full snapshot
+ * paged in hash order and then catch up with a delta from the snapshot's version.
+ */
+public class FileCatalog {
+    public static final byte OP_ADD = 1;
+    public static final byte OP_REMOVE = 2;
+
+    private static final int MAX_CHANGE_LOG = 4096;
+
+    public static class Entry {
+        public final byte op;
+        public final String hash;
+        public final String name;
+        public final long size;
+        final long version;
+
+        Entry(byte op, String hash, String name, long size, long version) {
+            this.op = op;
+            this.hash = hash;
+            this.name = name;
+            this.size = size;
+            this.version = version;
+        }
+    }
+
+    public static class Page {
+        public long epoch;
+        public long version; // Delta: version of the last entry sent. Full: catalog version when the page was built.
+        public boolean full;
+        public boolean hasMore;
+        public List<Entry> entries = new ArrayList<>();
+    }
+
+    // Identifies this catalog instance; versions from another run are meaningless
+    private final long epoch = new Random().nextLong();
+    private long version = 0;
+    private final TreeMap<String, Entry> current = new TreeMap<>(); // Hash -> latest ADD
+    private final ArrayDeque<Entry> changeLog = new ArrayDeque<>();
+
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    synchronized void put(String hash, String name, long size) {
+        Entry existing = current.get(hash);
+        if (existing != null && existing.name.equals(name) && existing.size == size)
+            return; // Re-published without changes
+        Entry entry = new Entry(OP_ADD, hash, name, size, ++version);
+        current.put(hash, entry);
+        log(entry);
+    }
+
+    synchronized void remove(String hash) {
+        if (current.remove(hash) != null)
+            log(new Entry(OP_REMOVE, hash, "", 0, ++version));
+    }
+
+    private void log(Entry entry) {
+        changeLog.addLast(entry);
+        if (changeLog.size() > MAX_CHANGE_LOG)
+            changeLog.removeFirst();
+    }
+
+    /**
+     * Returns the next page for a peer that has (epoch, sinceVersion). afterHash is the paging
+     * cursor of a full snapshot (the last hash of the previous page, "" for the first page).
+     */
+    public synchronized Page getPage(long peerEpoch, long sinceVersion, String afterHash, int maxEntries) {
+        Page page = new Page();
+        page.epoch = epoch;
+        maxEntries = Math.max(1, maxEntries);
+
+        long oldestLogged = changeLog.isEmpty() ? version + 1 : changeLog.peekFirst().version;
+        boolean canDelta = peerEpoch == epoch && afterHash.isEmpty()
+                && sinceVersion <= version && sinceVersion + 1 >= oldestLogged;
+
+        if (canDelta) {
+            page.version = sinceVersion;
+            // The log is in version order; skip what the peer already has
+            Iterator<Entry> it = changeLog.descendingIterator();
+            List<Entry> newer = new ArrayList<>();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (e.version <= sinceVersion)
+                    break;
+                newer.add(e);
+            }
+            for (int i = newer.size() - 1; i >= 0 && page.entries.size() < maxEntries; i--) {
+                page.entries.add(newer.get(i));
+                page.version = newer.get(i).version;
+            }
+            page.hasMore = page.version < version;
+            return page;
+        }
+
+        page.full = true;
+        page.version = version;
+        Map<String, Entry> tail = afterHash.isEmpty() ? current : current.tailMap(afterHash, false);
+        for (Entry e : tail.values()) {
+            if (page.entries.size() == maxEntries) {
+                page.hasMore = true;
+                break;
+            }
+            page.entries.add(e);
+        }
+        return page;
+    }
+}
@@ -0,0 +1,80 @@
+package com.network.p2p.managers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PieceStorage on a FileChannel. Reads are positional and don't touch the channel position;
+ * writes of contiguous buffers go out as one gathering write.
+ */
+public class FileChannelStorage implements PieceStorage {
+    private final File file;
+    private final long size;
+    private final FileChannel channel;
+
+    public FileChannelStorage(File file, long size, boolean readOnly) throws IOException {
+        this.file = file;
+        this.size = size;
+        if (readOnly) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } else {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() != size) {
+                // Pre-allocate with full size so VLC knows the file size
+                if (channel.size() > size)
+                    channel.truncate(size);
+                else
+                    channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+        }
+    }
+
+    @Override
+    public Type getType() {
+        return Type.FILE;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int read(long offset, byte[] buffer, int bufferOffset, int len) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, bufferOffset, (int) Math.max(0, Math.min(len, size - offset)));
+        while (target.hasRemaining()) {
+            int n = channel.read(target, offset + target.position() - bufferOffset);
+            if (n < 0)
+                break;
+        }
+        return target.position() - bufferOffset;
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer[] buffers) throws IOException {
+        // Position and gathering write must not interleave with another writer
+        synchronized (channel) {
+            channel.position(offset);
+            while (buffers[buffers.length - 1].hasRemaining())
+                channel.write(buffers);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -3,37 +3,100 @@ package com.network.p2p.managers;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
 
 public class FileManager {
+    private static final int FILES_HASHED_AT_ONCE = 4; // Small files keep the cores busy while big ones stream
 
     public static class SharedFile {
         public String name;
         public long size;
         public String hash;
         public File fileHandle;
+        public long lastModified; // Fingerprint used to skip re-hashing unchanged files
 
         public SharedFile(String name, long size, String hash, File fileHandle) {
             this.name = name;
             this.size = size;
             this.hash = hash;
             this.fileHandle = fileHandle;
+            this.lastModified = fileHandle != null ? fileHandle.lastModified() : 0;
         }
     }
 
     private File rootDirectory;
     private File bufferDirectory;
     private final Map<String, SharedFile> sharedFiles = new ConcurrentHashMap<>(); // Hash -> File
+    // Completed downloads from the buffer folder; kept across rescans of the root directory
+    private final Map<String, SharedFile> downloadedFiles = new ConcurrentHashMap<>(); // Hash -> File
+    // Every indexed video under the root directory, so changes can be applied per file
+    private final Map<Path, SharedFile> indexedPaths = new ConcurrentHashMap<>(); // Path -> File
+    // Name search index over sharedFiles, updated together with it
+    private final FileNameIndex nameIndex = new FileNameIndex();
+    // Versioned change log over sharedFiles for incremental catalog sync with peers
+    private final FileCatalog catalog = new FileCatalog();
+
+    /** Told when a hash stops being shared, so per-file caches can be dropped right away. */
+    public interface HashRetiredListener {
+        void onHashRetired(String hash);
+    }
+
+    private HashRetiredListener hashRetiredListener;
+    private boolean recursive = "true".equalsIgnoreCase(System.getenv("SCAN_RECURSIVE"));
+    private DirectoryWatcher watcher;
+    // Hashing of changed files happens here, off the watcher and GUI threads
+    private final ExecutorService indexExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "FileIndexer");
+        t.setDaemon(true);
+        return t;
+    });
+    // Files of a directory scan are hashed a few at a time; ContentHash spreads each over the cores
+    private final ExecutorService scanExecutor = Executors.newFixedThreadPool(FILES_HASHED_AT_ONCE, r -> {
+        Thread t = new Thread(r, "FileIndexer-Scan");
+        t.setDaemon(true);
+        return t;
+    });
 
     public void setRootDirectory(File dir) {
         if (dir.exists() && dir.isDirectory()) {
+            stopWatching();
             this.rootDirectory = dir;
             scanDirectory();
+            watcher = new DirectoryWatcher(dir.toPath(), recursive, this);
+            watcher.start();
+        }
+    }
+
+    public void setHashRetiredListener(HashRetiredListener listener) {
+        this.hashRetiredListener = listener;
+    }
+
+    /**
+     * Whether sub-directories of the root folder are indexed and watched too.
+     * Takes effect on the next setRootDirectory() (default from SCAN_RECURSIVE).
+     */
+    public void setRecursive(boolean recursive) {
+        this.recursive = recursive;
+    }
+
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    public void stopWatching() {
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
         }
     }
 
@@ -53,57 +116,180 @@ public class FileManager {
         return bufferDirectory;
     }
 
+    static boolean isVideoFile(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".mp4") || lower.endsWith(".mkv");
+    }
+
+    /**
+     * Brings the index in line with the root directory. Files whose size and modification time
+     * are unchanged keep their hash; only new or modified files are hashed, several at once.
+     */
     public void scanDirectory() {
         if (rootDirectory == null)
             return;
 
-        sharedFiles.clear();
-        File[] files = rootDirectory
-                .listFiles((d, name) -> name.toLowerCase().endsWith(".mp4") || name.toLowerCase().endsWith(".mkv"));
-
-        if (files != null) {
-            for (File f : files) {
-                try {
-                    String hash = computeSha256(f);
-                    SharedFile sf = new SharedFile(f.getName(), f.length(), hash, f);
-                    sharedFiles.put(hash, sf);
-                    System.out.println("Indexed file: " + f.getName() + " [" + hash + "]");
-                } catch (Exception e) {
-                    System.err.println("Error hashing file " + f.getName() + ": " + e.getMessage());
-                }
+        Set<Path> present = new HashSet<>();
+        try (Stream<Path> paths = recursive ? Files.walk(rootDirectory.toPath()) : Files.list(rootDirectory.toPath())) {
+            paths.filter(Files::isRegularFile)
+                    .filter(p -> isVideoFile(p.getFileName().toString()))
+                    .forEach(present::add);
+        } catch (IOException e) {
+            System.err.println("Error scanning " + rootDirectory + ": " + e.getMessage());
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        List<Callable<Void>> jobs = new ArrayList<>();
+        for (Path path : present) {
+            jobs.add(() -> {
+                indexPath(path);
+                return null;
+            });
+        }
+        try {
+            scanExecutor.invokeAll(jobs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        System.out.println("Scanned " + present.size() + " file(s) in " + (System.currentTimeMillis() - start) + " ms");
+
+        for (Path indexed : new ArrayList<>(indexedPaths.keySet())) {
+            if (!present.contains(indexed))
+                removePath(indexed);
+        }
+
+        // Keep seeding completed downloads; their hash is already known, no need to re-read them
+        downloadedFiles.values().removeIf(sf -> !sf.fileHandle.exists());
+        for (SharedFile sf : downloadedFiles.values()) {
+            if (!sharedFiles.containsKey(sf.hash))
+                publish(sf);
+        }
+    }
+
+    // Called by the DirectoryWatcher; hashing runs on the background indexer thread
+    void onPathChanged(Path path) {
+        indexExecutor.submit(() -> {
+            if (Files.isRegularFile(path)) {
+                indexPath(path);
+            } else {
+                removePath(path);
             }
+        });
+    }
+
+    void onOverflow() {
+        indexExecutor.submit(this::scanDirectory);
+    }
+
+    // (Re)index a single file if it is new or its fingerprint changed
+    private void indexPath(Path path) {
+        File f = path.toFile();
+        SharedFile existing = indexedPaths.get(path);
+        if (existing != null && existing.size == f.length() && existing.lastModified == f.lastModified())
+            return; // Unchanged, keep the old hash
+
+        try {
+            String hash = computeContentId(f);
+            SharedFile sf = new SharedFile(f.getName(), f.length(), hash, f);
+            synchronized (this) {
+                SharedFile previous = indexedPaths.put(path, sf);
+                // Publish the new entry before retiring the old hash, so lookups never see a gap
+                publish(sf);
+                if (previous != null && !previous.hash.equals(hash))
+                    retireHash(previous.hash);
+            }
+            System.out.println("Indexed file: " + f.getName() + " [" + hash + "]");
+        } catch (Exception e) {
+            System.err.println("Error hashing file " + f.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void removePath(Path path) {
+        SharedFile previous = indexedPaths.remove(path);
+        if (previous != null) {
+            retireHash(previous.hash);
+            System.out.println("Removed file from index: " + previous.name);
+        }
+    }
+
+    // Drop a hash unless another indexed copy or a completed download still provides it
+    private void retireHash(String hash) {
+        for (SharedFile other : indexedPaths.values()) {
+            if (other.hash.equals(hash)) {
+                publish(other);
+                return;
+            }
+        }
+        SharedFile downloaded = downloadedFiles.get(hash);
+        if (downloaded != null) {
+            publish(downloaded);
+        } else {
+            sharedFiles.remove(hash);
+            nameIndex.remove(hash);
+            catalog.remove(hash);
+            if (hashRetiredListener != null)
+                hashRetiredListener.onHashRetired(hash);
         }
     }
 
+    private synchronized void publish(SharedFile sf) {
+        sharedFiles.put(sf.hash, sf);
+        nameIndex.put(sf.hash, sf.name);
+        catalog.put(sf.hash, sf.name, sf.size);
+    }
+
+    /**
+     * Shares a completed download under the hash it was downloaded by, without re-hashing the file.
+     */
+    public void registerDownloadedFile(String name, long size, String hash, File file) {
+        if (file == null || !file.exists())
+            return;
+        SharedFile sf = new SharedFile(name, size, hash, file);
+        downloadedFiles.put(hash, sf);
+        publish(sf);
+        System.out.println("Seeding downloaded file: " + name + " [" + hash + "]");
+    }
+
     public List<SharedFile> getFileList() {
         return new ArrayList<>(sharedFiles.values());
     }
 
+    public FileCatalog getCatalog() {
+        return catalog;
+    }
+
+    public List<String> getSharedHashes() {
+        return new ArrayList<>(sharedFiles.keySet());
+    }
+
     public SharedFile getFileByHash(String hash) {
         return sharedFiles.get(hash);
     }
 
     public SharedFile searchFile(String partialName) {
-        for (SharedFile sf : sharedFiles.values()) {
-            if (sf.name.toLowerCase().contains(partialName.toLowerCase())) {
-                return sf;
-            }
-        }
-        return null;
+        List<SharedFile> results = search(partialName, 1);
+        return results.isEmpty() ? null : results.get(0);
     }
 
-    private String computeSha256(File file) throws IOException, NoSuchAlgorithmException {
-        byte[] fileBytes = Files.readAllBytes(file.toPath());
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        byte[] digest = md.digest(fileBytes);
+    /**
+     * Ranked name search over the shared files, best match first, at most limit results.
+     */
+    public List<SharedFile> search(String query, int limit) {
+        List<SharedFile> results = new ArrayList<>();
+        for (String hash : nameIndex.search(query, limit)) {
+            SharedFile sf = sharedFiles.get(hash);
+            if (sf != null)
+                results.add(sf);
+        }
+        return results;
+    }
 
-        StringBuilder hexString = new StringBuilder();
-        for (byte b : digest) {
-            String hex = Integer.toHexString(0xff & b);
-            if (hex.length() == 1)
-                hexString.append('0');
-            hexString.append(hex);
+    // Tree hash over the file's pieces, streamed in parallel (see ContentHash)
+    private String computeContentId(File file) throws IOException {
+        try (PieceStorage storage = PieceStorage.open(PieceStorage.Type.FILE, file, file.length(), true)) {
+            return ContentHash.compute(storage, file.length()).contentId;
         }
-        return hexString.toString();
     }
 }
@@ -0,0 +1,253 @@
+package com.network.p2p.managers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over shared file names, keyed by content hash.
+ * Queries of 3+ characters use a trigram index (substring semantics, like the old
+ * linear contains() scan); shorter queries match the prefix of a name token.
+ * Postings are sorted int arrays of document ids; removed documents are tombstoned
+ * and the index is compacted once tombstones outnumber live entries.
+ */
+public class FileNameIndex {
+    private static final int MIN_COMPACT_TOMBSTONES = 1024;
+
+    private static class Doc {
+        final String hash;
+        final String lowerName;
+
+        Doc(String hash, String lowerName) {
+            this.hash = hash;
+            this.lowerName = lowerName;
+        }
+    }
+
+    // Growable sorted list of document ids (ids are assigned in increasing order)
+    private static class IntList {
+        int[] data = new int[4];
+        int size = 0;
+
+        void add(int value) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = value;
+        }
+    }
+
+    private final List<Doc> docs = new ArrayList<>(); // docId -> Doc (null once removed)
+    private final Map<String, Integer> docIdByHash = new HashMap<>();
+    private final Map<String, IntList> trigrams = new HashMap<>();
+    private final TreeMap<String, IntList> tokens = new TreeMap<>();
+    private final BitSet dead = new BitSet();
+    private int deadCount = 0;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Adds or renames the entry for a hash. */
+    public void put(String hash, String name) {
+        lock.writeLock().lock();
+        try {
+            String lower = name.toLowerCase();
+            Integer existing = docIdByHash.get(hash);
+            if (existing != null) {
+                if (docs.get(existing).lowerName.equals(lower))
+                    return;
+                removeDoc(existing);
+            }
+
+            int docId = docs.size();
+            docs.add(new Doc(hash, lower));
+            docIdByHash.put(hash, docId);
+            for (String gram : distinctTrigrams(lower))
+                trigrams.computeIfAbsent(gram, k -> new IntList()).add(docId);
+            for (String token : tokenize(lower))
+                tokens.computeIfAbsent(token, k -> new IntList()).add(docId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String hash) {
+        lock.writeLock().lock();
+        try {
+            Integer docId = docIdByHash.remove(hash);
+            if (docId != null)
+                removeDoc(docId);
+            if (deadCount > MIN_COMPACT_TOMBSTONES && deadCount > docIdByHash.size())
+                compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeDoc(int docId) {
+        docs.set(docId, null);
+        dead.set(docId);
+        deadCount++;
+    }
+
+    /**
+     * Returns the hashes of matching files, best match first.
+     * Ranking: exact name (ignoring extension), name prefix, token prefix, plain substring;
+     * ties go to the shorter name.
+     */
+    public List<String> search(String query, int limit) {
+        String q = query.trim().toLowerCase();
+        if (q.isEmpty() || limit <= 0)
+            return Collections.emptyList();
+
+        lock.readLock().lock();
+        try {
+            PriorityQueue<int[]> top = new PriorityQueue<>(
+                    Comparator.<int[]>comparingInt(e -> e[1]).thenComparingInt(e -> e[2]).reversed());
+            if (q.length() >= 3) {
+                for (int docId : intersect(distinctTrigrams(q))) {
+                    Doc doc = docs.get(docId);
+                    if (doc != null && doc.lowerName.contains(q))
+                        offer(top, docId, score(doc.lowerName, q), limit);
+                }
+            } else {
+                // Short query: prefix match on tokens (each doc reported once)
+                BitSet seen = new BitSet();
+                for (IntList postings : tokens.subMap(q, q + Character.MAX_VALUE).values()) {
+                    for (int i = 0; i < postings.size; i++) {
+                        int docId = postings.data[i];
+                        if (dead.get(docId) || seen.get(docId))
+                            continue;
+                        seen.set(docId);
+                        offer(top, docId, score(docs.get(docId).lowerName, q), limit);
+                    }
+                }
+            }
+
+            List<int[]> ranked = new ArrayList<>(top);
+            ranked.sort(Comparator.<int[]>comparingInt(e -> e[1]).thenComparingInt(e -> e[2]));
+            List<String> hashes = new ArrayList<>(ranked.size());
+            for (int[] e : ranked)
+                hashes.add(docs.get(e[0]).hash);
+            return hashes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Keep the best `limit` entries; the queue head is the worst one kept
+    private void offer(PriorityQueue<int[]> top, int docId, int score, int limit) {
+        int[] entry = { docId, score, docs.get(docId).lowerName.length() };
+        if (top.size() < limit) {
+            top.add(entry);
+        } else {
+            int[] worst = top.peek();
+            if (score < worst[1] || (score == worst[1] && entry[2] < worst[2])) {
+                top.poll();
+                top.add(entry);
+            }
+        }
+    }
+
+    private static int score(String lowerName, String q) {
+        int dot = lowerName.lastIndexOf('.');
+        String base = dot > 0 ? lowerName.substring(0, dot) : lowerName;
+        if (base.equals(q) || lowerName.equals(q))
+            return 0;
+        if (lowerName.startsWith(q))
+            return 1;
+        // Token prefix: an occurrence right after a separator
+        for (int i = lowerName.indexOf(q, 1); i > 0; i = lowerName.indexOf(q, i + 1)) {
+            if (!Character.isLetterOrDigit(lowerName.charAt(i - 1)))
+                return 2;
+        }
+        return 3;
+    }
+
+    // Intersect trigram postings, smallest list first
+    private List<Integer> intersect(List<String> grams) {
+        List<IntList> lists = new ArrayList<>();
+        for (String gram : grams) {
+            IntList postings = trigrams.get(gram);
+            if (postings == null)
+                return Collections.emptyList();
+            lists.add(postings);
+        }
+        lists.sort(Comparator.comparingInt(l -> l.size));
+
+        IntList first = lists.get(0);
+        int[] current = Arrays.copyOf(first.data, first.size);
+        int currentSize = first.size;
+        for (int l = 1; l < lists.size() && currentSize > 0; l++) {
+            IntList other = lists.get(l);
+            int n = 0, i = 0, j = 0;
+            while (i < currentSize && j < other.size) {
+                if (current[i] == other.data[j]) {
+                    current[n++] = current[i];
+                    i++;
+                    j++;
+                } else if (current[i] < other.data[j]) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            currentSize = n;
+        }
+
+        List<Integer> result = new ArrayList<>(currentSize);
+        for (int i = 0; i < currentSize; i++) {
+            if (!dead.get(current[i]))
+                result.add(current[i]);
+        }
+        return result;
+    }
+
+    // Rebuild postings without tombstoned documents
+    private void compact() {
+        List<Doc> live = new ArrayList<>();
+        for (Doc doc : docs) {
+            if (doc != null)
+                live.add(doc);
+        }
+        docs.clear();
+        docIdByHash.clear();
+        trigrams.clear();
+        tokens.clear();
+        dead.clear();
+        deadCount = 0;
+        for (Doc doc : live) {
+            int docId = docs.size();
+            docs.add(doc);
+            docIdByHash.put(doc.hash, docId);
+            for (String gram : distinctTrigrams(doc.lowerName))
+                trigrams.computeIfAbsent(gram, k -> new IntList()).add(docId);
+            for (String token : tokenize(doc.lowerName))
+                tokens.computeIfAbsent(token, k -> new IntList()).add(docId);
+        }
+    }
+
+    private static List<String> distinctTrigrams(String s) {
+        List<String> grams = new ArrayList<>();
+        for (int i = 0; i + 3 <= s.length(); i++) {
+            String gram = s.substring(i, i + 3);
+            if (!grams.contains(gram))
+                grams.add(gram);
+        }
+        return grams;
+    }
+
+    private static List<String> tokenize(String s) {
+        List<String> result = new ArrayList<>();
+        for (String token : s.split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty() && !result.contains(token))
+                result.add(token);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,95 @@
+package com.network.p2p.managers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PieceStorage on memory-mapped segments of a file. Reads and writes are plain memory copies
+ * (absolute get/put, so concurrent access never shares a buffer position); the OS pages data
+ * in and writes it back. Files over 1 GB are mapped in several segments.
+ */
+public class MappedFileStorage implements PieceStorage {
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final File file;
+    private final long size;
+    private final MappedByteBuffer[] segments;
+
+    public MappedFileStorage(File file, long size, boolean readOnly) throws IOException {
+        this.file = file;
+        this.size = size;
+        int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        this.segments = new MappedByteBuffer[count];
+        try (FileChannel channel = readOnly
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+                : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+            for (int i = 0; i < count; i++) {
+                long start = (long) i * SEGMENT_SIZE;
+                segments[i] = channel.map(mode, start, Math.min(SEGMENT_SIZE, size - start)); // Grows the file if needed
+            }
+        }
+    }
+
+    @Override
+    public Type getType() {
+        return Type.MMAP;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int read(long offset, byte[] buffer, int bufferOffset, int len) throws IOException {
+        int total = (int) Math.max(0, Math.min(len, size - offset));
+        int done = 0;
+        while (done < total) {
+            long position = offset + done;
+            MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+            int index = (int) (position % SEGMENT_SIZE);
+            int n = Math.min(total - done, segment.capacity() - index);
+            segment.get(index, buffer, bufferOffset + done, n);
+            done += n;
+        }
+        return total;
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer[] buffers) throws IOException {
+        long position = offset;
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+                int index = (int) (position % SEGMENT_SIZE);
+                int n = Math.min(buffer.remaining(), segment.capacity() - index);
+                segment.put(index, buffer, buffer.position(), n);
+                buffer.position(buffer.position() + n);
+                position += n;
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (MappedByteBuffer segment : segments) {
+            if (!segment.isReadOnly())
+                segment.force();
+        }
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() {
+        // Mappings are released when the buffers are garbage collected
+    }
+}
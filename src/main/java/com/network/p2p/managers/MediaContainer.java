@@ -0,0 +1,315 @@
+package com.network.p2p.managers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal MP4/Matroska layout reader for partially downloaded files. It only looks at the bytes a
+ * Source can already provide; when it needs a range that hasn't arrived yet it stops and reports
+ * where (missingOffset), so callers can fetch that next and retry once more chunks are in.
+ * Besides the duration it finds the index structures a player reads before it can start or seek:
+ * the MP4 moov box (often at the end of the file) and Matroska SeekHead/Cues.
+ */
+public class MediaContainer {
+    // Matroska element IDs (with their length marker bits, as they appear in the file)
+    private static final long EBML_HEADER = 0x1A45DFA3L;
+    private static final long MKV_SEGMENT = 0x18538067L;
+    private static final long MKV_INFO = 0x1549A966L;
+    private static final long MKV_SEEK_HEAD = 0x114D9B74L;
+    private static final long MKV_SEEK = 0x4DBBL;
+    private static final long MKV_SEEK_ID = 0x53ABL;
+    private static final long MKV_SEEK_POSITION = 0x53ACL;
+    private static final long MKV_CUES = 0x1C53BB6BL;
+    private static final long MKV_CLUSTER = 0x1F43B675L;
+    private static final long MKV_TIMECODE_SCALE = 0x2AD7B1L;
+    private static final long MKV_DURATION = 0x4489L;
+
+    private static final int MAX_HEADER_BOXES = 64; // Top-level boxes/elements walked before giving up
+    private static final int MAX_INFO_SIZE = 64 * 1024; // Info and SeekHead bodies read at most
+
+    public interface Source {
+        /** Reads len bytes at offset; returns false if any of them isn't available yet. */
+        boolean read(long offset, byte[] buffer, int len) throws IOException;
+    }
+
+    public static class Layout {
+        public String format = "unknown"; // mp4, mkv or unknown
+        public double durationSeconds = 0; // 0 until the container says
+        public long missingOffset = -1; // Parsing stopped here for lack of data, -1 if it got what it could
+        public List<long[]> indexRanges = new ArrayList<>(); // [start, end) byte ranges of moov / SeekHead / Cues
+
+        public boolean isComplete() {
+            return missingOffset < 0;
+        }
+
+        void missing(long offset) {
+            if (missingOffset < 0)
+                missingOffset = offset;
+        }
+    }
+
+    public static Layout parse(Source source, long fileSize) throws IOException {
+        Layout layout = new Layout();
+        byte[] magic = new byte[8];
+        if (fileSize < 8)
+            return layout;
+        if (!source.read(0, magic, 8)) {
+            layout.missing(0);
+            return layout;
+        }
+        String boxType = new String(magic, 4, 4, StandardCharsets.ISO_8859_1);
+        if (boxType.equals("ftyp") || boxType.equals("moov") || boxType.equals("free") || boxType.equals("mdat")) {
+            layout.format = "mp4";
+            parseMp4(source, fileSize, layout);
+        } else if (ByteBuffer.wrap(magic).getInt() == (int) EBML_HEADER) {
+            layout.format = "mkv";
+            parseMatroska(source, fileSize, layout);
+        }
+        return layout;
+    }
+
+    // Walks the top-level boxes up to moov and reads the movie duration from its mvhd
+    private static void parseMp4(Source source, long fileSize, Layout layout) throws IOException {
+        long offset = 0;
+        byte[] header = new byte[16];
+        for (int i = 0; i < MAX_HEADER_BOXES && offset + 8 <= fileSize; i++) {
+            int headerLength = (int) Math.min(16, fileSize - offset);
+            if (!source.read(offset, header, headerLength)) {
+                layout.missing(offset);
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(header);
+            long size = buf.getInt() & 0xFFFFFFFFL;
+            String type = new String(header, 4, 4, StandardCharsets.ISO_8859_1);
+            int bodyStart = 8;
+            if (size == 1) {
+                if (headerLength < 16)
+                    return;
+                size = buf.getLong(8);
+                bodyStart = 16;
+            } else if (size == 0) {
+                size = fileSize - offset; // Box runs to the end of the file
+            }
+            if (size < bodyStart)
+                return; // Corrupt
+
+            if (type.equals("moov")) {
+                layout.indexRanges.add(new long[] { offset, Math.min(offset + size, fileSize) });
+                readMvhd(source, offset + bodyStart, Math.min(offset + size, fileSize), layout);
+                return;
+            }
+            offset += size;
+        }
+    }
+
+    private static void readMvhd(Source source, long start, long end, Layout layout) throws IOException {
+        byte[] header = new byte[8];
+        byte[] body = new byte[32];
+        long offset = start;
+        while (offset + 8 <= end) {
+            if (!source.read(offset, header, 8)) {
+                layout.missing(offset);
+                return;
+            }
+            long size = ByteBuffer.wrap(header).getInt() & 0xFFFFFFFFL;
+            String type = new String(header, 4, 4, StandardCharsets.ISO_8859_1);
+            if (type.equals("mvhd")) {
+                int bodyLength = (int) Math.min(body.length, end - offset - 8);
+                if (!source.read(offset + 8, body, bodyLength)) {
+                    layout.missing(offset + 8);
+                    return;
+                }
+                ByteBuffer buf = ByteBuffer.wrap(body, 0, bodyLength);
+                int version = buf.get() & 0xFF;
+                if (bodyLength < (version == 1 ? 32 : 20))
+                    return; // Truncated mvhd
+                long timescale;
+                long duration;
+                if (version == 1) {
+                    buf.position(4 + 16); // Version, flags, 64-bit creation and modification times
+                    timescale = buf.getInt() & 0xFFFFFFFFL;
+                    duration = buf.getLong();
+                } else {
+                    buf.position(4 + 8); // Version, flags, 32-bit creation and modification times
+                    timescale = buf.getInt() & 0xFFFFFFFFL;
+                    duration = buf.getInt() & 0xFFFFFFFFL;
+                }
+                if (timescale > 0 && duration > 0 && duration != 0xFFFFFFFFL)
+                    layout.durationSeconds = duration / (double) timescale;
+                return;
+            }
+            if (size < 8)
+                return;
+            offset += size;
+        }
+    }
+
+    // Walks the Segment's children up to the first Cluster: Info for the duration, SeekHead and
+    // Cues as index ranges, plus whatever the SeekHead says lies further on (usually Cues at the end)
+    private static void parseMatroska(Source source, long fileSize, Layout layout) throws IOException {
+        Element ebml = readElement(source, 0, fileSize, layout);
+        if (ebml == null || ebml.size < 0)
+            return;
+        Element segment = readElement(source, ebml.dataStart + ebml.size, fileSize, layout);
+        if (segment == null || segment.id != MKV_SEGMENT)
+            return;
+
+        long offset = segment.dataStart;
+        long end = segment.size < 0 ? fileSize : Math.min(fileSize, segment.dataStart + segment.size);
+        for (int i = 0; i < MAX_HEADER_BOXES && offset < end; i++) {
+            Element child = readElement(source, offset, end, layout);
+            if (child == null || child.id == MKV_CLUSTER || child.size < 0)
+                return;
+            if (child.id == MKV_INFO) {
+                readInfo(source, child, layout);
+            } else if (child.id == MKV_SEEK_HEAD) {
+                layout.indexRanges.add(new long[] { offset, Math.min(end, child.dataStart + child.size) });
+                readSeekHead(source, child, segment.dataStart, end, layout);
+            } else if (child.id == MKV_CUES) {
+                layout.indexRanges.add(new long[] { offset, Math.min(end, child.dataStart + child.size) });
+            }
+            offset = child.dataStart + child.size;
+        }
+    }
+
+    private static void readInfo(Source source, Element info, Layout layout) throws IOException {
+        byte[] body = readBody(source, info, layout);
+        if (body == null)
+            return;
+        long timecodeScale = 1_000_000; // Nanoseconds per tick, Matroska default
+        double duration = 0;
+        for (long[] child : children(body, 0, body.length)) {
+            int data = (int) child[1];
+            int size = (int) child[2];
+            if (child[0] == MKV_TIMECODE_SCALE) {
+                timecodeScale = readRaw(body, data, size);
+            } else if (child[0] == MKV_DURATION) {
+                ByteBuffer buf = ByteBuffer.wrap(body, data, size);
+                duration = size == 4 ? buf.getFloat() : size == 8 ? buf.getDouble() : 0;
+            }
+        }
+        if (duration > 0)
+            layout.durationSeconds = duration * timecodeScale / 1e9;
+    }
+
+    // Seek entries point at top-level elements by position relative to the segment data
+    private static void readSeekHead(Source source, Element seekHead, long segmentData, long end, Layout layout) throws IOException {
+        byte[] body = readBody(source, seekHead, layout);
+        if (body == null)
+            return;
+        for (long[] seek : children(body, 0, body.length)) {
+            if (seek[0] != MKV_SEEK)
+                continue;
+            long id = -1;
+            long position = -1;
+            for (long[] field : children(body, (int) seek[1], (int) (seek[1] + seek[2]))) {
+                if (field[0] == MKV_SEEK_ID && field[2] <= 4)
+                    id = readRaw(body, (int) field[1], (int) field[2]);
+                else if (field[0] == MKV_SEEK_POSITION && field[2] <= 8)
+                    position = readRaw(body, (int) field[1], (int) field[2]);
+            }
+            if ((id != MKV_CUES && id != MKV_SEEK_HEAD) || position < 0)
+                continue;
+            long target = segmentData + position;
+            if (target == seekHead.dataStart - seekHead.headerLength || target >= end)
+                continue; // Ourselves, or out of range
+            Element element = readElement(source, target, end, layout);
+            if (element != null && element.size >= 0)
+                layout.indexRanges.add(new long[] { target, Math.min(end, element.dataStart + element.size) });
+        }
+    }
+
+    private static byte[] readBody(Source source, Element element, Layout layout) throws IOException {
+        int length = (int) Math.min(element.size, MAX_INFO_SIZE);
+        byte[] body = new byte[length];
+        if (!source.read(element.dataStart, body, length)) {
+            layout.missing(element.dataStart);
+            return null;
+        }
+        return body;
+    }
+
+    // Child elements of an EBML body as {id, dataPos, size}; stops at the first malformed one
+    private static List<long[]> children(byte[] body, int from, int to) {
+        List<long[]> result = new ArrayList<>();
+        int pos = from;
+        while (pos < to) {
+            int idLength = vintLength(body[pos]);
+            if (idLength == 0 || pos + idLength >= to)
+                break;
+            long id = readRaw(body, pos, idLength);
+            int sizeLength = vintLength(body[pos + idLength]);
+            if (sizeLength == 0 || pos + idLength + sizeLength > to)
+                break;
+            long size = readVintValue(body, pos + idLength, sizeLength);
+            int data = pos + idLength + sizeLength;
+            if (size < 0 || data + size > to)
+                break;
+            result.add(new long[] { id, data, size });
+            pos = data + (int) size;
+        }
+        return result;
+    }
+
+    // An EBML element header; size is -1 when unknown (live-style segments)
+    static class Element {
+        long id;
+        long size;
+        long dataStart;
+        int headerLength;
+    }
+
+    static Element readElement(Source source, long offset, long end, Layout layout) throws IOException {
+        byte[] header = new byte[12];
+        int headerLength = (int) Math.min(header.length, end - offset);
+        if (headerLength < 2)
+            return null;
+        if (!source.read(offset, header, headerLength)) {
+            layout.missing(offset);
+            return null;
+        }
+        int idLength = vintLength(header[0]);
+        if (idLength == 0 || idLength > 4 || idLength >= headerLength)
+            return null;
+        int sizeLength = vintLength(header[idLength]);
+        if (sizeLength == 0 || idLength + sizeLength > headerLength)
+            return null;
+        Element element = new Element();
+        element.id = readRaw(header, 0, idLength);
+        element.size = readVintValue(header, idLength, sizeLength);
+        element.dataStart = offset + idLength + sizeLength;
+        element.headerLength = idLength + sizeLength;
+        return element;
+    }
+
+    // Length of a variable-size integer from the position of the first set bit (0 if invalid)
+    static int vintLength(byte first) {
+        int b = first & 0xFF;
+        for (int length = 1; length <= 8; length++) {
+            if ((b & (0x80 >> (length - 1))) != 0)
+                return length;
+        }
+        return 0;
+    }
+
+    static long readRaw(byte[] data, int pos, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++)
+            value = (value << 8) | (data[pos + i] & 0xFF);
+        return value;
+    }
+
+    // Value with the length marker removed; all ones means "unknown" and returns -1
+    static long readVintValue(byte[] data, int pos, int length) {
+        long value = data[pos] & (0xFF >> length);
+        boolean allOnes = value == (0xFF >> length);
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (data[pos + i] & 0xFF);
+            allOnes &= (data[pos + i] & 0xFF) == 0xFF;
+        }
+        return allOnes ? -1 : value;
+    }
+}
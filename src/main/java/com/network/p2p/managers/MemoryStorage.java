@@ -0,0 +1,89 @@
+package com.network.p2p.managers;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Heap-only PieceStorage for tests and watch-only viewing. Pages are allocated on first write,
+ * so memory grows with what was actually downloaded; unwritten ranges read as zeros.
+ */
+public class MemoryStorage implements PieceStorage {
+    private static final int PAGE_SIZE = 1 << 20;
+
+    private final long size;
+    private final byte[][] pages;
+
+    public MemoryStorage(long size) {
+        this.size = size;
+        this.pages = new byte[(int) ((size + PAGE_SIZE - 1) / PAGE_SIZE)][];
+    }
+
+    @Override
+    public Type getType() {
+        return Type.MEMORY;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int read(long offset, byte[] buffer, int bufferOffset, int len) {
+        int total = (int) Math.max(0, Math.min(len, size - offset));
+        int done = 0;
+        while (done < total) {
+            long position = offset + done;
+            int pageIndex = (int) (position / PAGE_SIZE);
+            int index = (int) (position % PAGE_SIZE);
+            int n = Math.min(total - done, PAGE_SIZE - index);
+            byte[] page;
+            synchronized (this) {
+                page = pages[pageIndex];
+            }
+            if (page != null) {
+                System.arraycopy(page, index, buffer, bufferOffset + done, n);
+            } else {
+                Arrays.fill(buffer, bufferOffset + done, bufferOffset + done + n, (byte) 0);
+            }
+            done += n;
+        }
+        return total;
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer[] buffers) {
+        long position = offset;
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                int pageIndex = (int) (position / PAGE_SIZE);
+                int index = (int) (position % PAGE_SIZE);
+                int n = Math.min(buffer.remaining(), PAGE_SIZE - index);
+                byte[] page;
+                synchronized (this) {
+                    if (pages[pageIndex] == null)
+                        pages[pageIndex] = new byte[(int) Math.min(PAGE_SIZE, size - (long) pageIndex * PAGE_SIZE)];
+                    page = pages[pageIndex];
+                }
+                buffer.get(page, index, n);
+                position += n;
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to make durable
+    }
+
+    @Override
+    public File getFile() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        // Pages go away with the object
+    }
+}
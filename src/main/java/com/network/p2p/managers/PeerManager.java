@@ -1,16 +1,52 @@
 package com.network.p2p.managers;
 
+import com.network.p2p.network.DhtNode;
 import com.network.p2p.network.DiscoveryService;
+import com.network.p2p.network.Protocol;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class PeerManager implements DiscoveryService.PeerDiscoveryListener {
+    private static final int MAX_QUERY_HITS = 100; // Results returned per incoming query
+    private static final int QUERY_TTL = 3;
+    private static final long REASSEMBLY_TIMEOUT_MS = 5000; // Deliver what we have if fragments go missing
+    private static final int MAX_PENDING_HIT_SETS_PER_PEER = 8; // Hit sets being reassembled from one responder
+    private static final int MAX_MISSED_ANNOUNCEMENTS = 3; // Evict a peer after this many silent intervals
+    private static final long UNANNOUNCED_INTERVAL_MS = 60000; // Assumed for peers we only know from responses
+    private static final long EXPIRY_CHECK_MS = 5000;
+    // Peer exchange (PEX) over FileServer TCP, for peers outside our broadcast domain
+    private static final long PEX_INTERVAL_MS = 30000;
+    private static final int PEX_FANOUT = 3; // Peers contacted per gossip round
+    private static final int PEX_SAMPLE_SIZE = 8; // Entries sent per exchange
+    private static final int PEX_TIMEOUT_MS = 3000;
+    // Catalog sync (REQUEST_CATALOG)
+    private static final int CATALOG_PAGE_SIZE = 500;
+    private static final int CATALOG_TIMEOUT_MS = 10000;
 
     public static class PeerInfo {
         public String id;
         public String ip;
         public int port;
         public long lastSeen;
+        public long announceIntervalMs = UNANNOUNCED_INTERVAL_MS; // How often we expect to hear from it
+        public boolean manual = false; // Manually added peers never expire
 
         public PeerInfo(String id, String ip, int port) {
             this.id = id;
@@ -18,11 +54,203 @@ public class PeerManager implements DiscoveryService.PeerDiscoveryListener {
             this.port = port;
             this.lastSeen = System.currentTimeMillis();
         }
+
+        public boolean isExpired(long now) {
+            // Allow for the sender's jitter on top of the missed announcements
+            return !manual && now - lastSeen > MAX_MISSED_ANNOUNCEMENTS * announceIntervalMs * 5 / 4;
+        }
+    }
+
+    // Fragments of a multi-packet QUERY_HITS answer from one responder, keyed by "responderId:queryId"
+    private static class PendingHits {
+        final String[] fragments;
+        final long createdAt = System.currentTimeMillis();
+        String ip;
+        int fileServerPort;
+        int received = 0;
+
+        PendingHits(int fragmentCount) {
+            this.fragments = new String[fragmentCount];
+        }
+    }
+
+    // Last catalog version synced from a peer and the files it listed
+    private static class PeerCatalog {
+        long epoch = 0;
+        long version = 0;
+        final Map<String, FileCatalog.Entry> files = new HashMap<>(); // Hash -> entry
     }
 
     private final Map<String, PeerInfo> knownPeers = new ConcurrentHashMap<>();
+    private final Map<String, PeerCatalog> peerCatalogs = new ConcurrentHashMap<>();
+    private final Map<String, PendingHits> pendingHits = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService maintenanceScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "PeerManager-Maintenance");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ScheduledExecutorService pexScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "PeerExchange");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public PeerManager() {
+        schedulePexRound();
+        maintenanceScheduler.scheduleAtFixedRate(this::flushStaleHits, REASSEMBLY_TIMEOUT_MS, REASSEMBLY_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS);
+        maintenanceScheduler.scheduleAtFixedRate(this::evictExpiredPeers, EXPIRY_CHECK_MS, EXPIRY_CHECK_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // Drop peers that missed MAX_MISSED_ANNOUNCEMENTS announcements in a row
+    private void evictExpiredPeers() {
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        for (PeerInfo info : knownPeers.values()) {
+            if (info.isExpired(now) && knownPeers.remove(info.id, info)) {
+                System.out.println("DEBUG: ✗ Peer expired: " + info.id + "@" + info.ip + " (silent for "
+                        + (now - info.lastSeen) / 1000 + "s, Total peers: " + knownPeers.size() + ")");
+                changed = true;
+            }
+        }
+        if (changed && guiUpdateCallback != null)
+            guiUpdateCallback.run();
+    }
+
+    // Gossip rounds are jittered like HELLOs so peers don't exchange in lockstep
+    private void schedulePexRound() {
+        long delay = (long) (PEX_INTERVAL_MS * (0.75 + 0.5 * Math.random()));
+        pexScheduler.schedule(() -> {
+            try {
+                runPexRound();
+            } finally {
+                schedulePexRound();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void runPexRound() {
+        List<PeerInfo> targets = new ArrayList<>(knownPeers.values());
+        Collections.shuffle(targets);
+        for (PeerInfo target : targets.subList(0, Math.min(PEX_FANOUT, targets.size()))) {
+            exchangePeers(target);
+        }
+    }
+
+    /**
+     * One PEX exchange: send a sample of our peer table to the target's FileServer and merge
+     * the sample it sends back. A successful exchange also proves the target is alive.
+     */
+    public void exchangePeers(PeerInfo target) {
+        String myPeerId = (discoveryService != null) ? discoveryService.getPeerId() : "UNKNOWN";
+        int myPort = (discoveryService != null) ? discoveryService.getFileServerPort() : 0;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(target.ip, target.port), PEX_TIMEOUT_MS);
+            socket.setSoTimeout(PEX_TIMEOUT_MS);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            out.writeInt(Protocol.REQUEST_PEX);
+            Protocol.writeString(out, myPeerId);
+            out.writeInt(myPort);
+            writePexEntries(out, samplePeers(target.id));
+            out.flush();
+
+            int merged = readPexEntries(in);
+            target.lastSeen = System.currentTimeMillis();
+            System.out.println("DEBUG PEX: Exchanged peers with " + target.id + " (" + merged + " new)");
+        } catch (IOException e) {
+            System.err.println("DEBUG PEX: Exchange with " + target.id + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Server side of a PEX exchange, called by the FileServer. The requester is registered
+     * under the address its connection came from.
+     */
+    public void handlePexRequest(DataInputStream in, DataOutputStream out, String remoteIp) throws IOException {
+        String remoteId = Protocol.readString(in);
+        int remotePort = in.readInt();
+        readPexEntries(in);
+        if (remotePort > 0)
+            onPeerFound(remoteId, remoteIp, remotePort);
+
+        writePexEntries(out, samplePeers(remoteId));
+        out.flush();
+    }
+
+    private List<PeerInfo> samplePeers(String excludeId) {
+        List<PeerInfo> sample = new ArrayList<>(knownPeers.values());
+        sample.removeIf(p -> p.id.equals(excludeId));
+        Collections.shuffle(sample);
+        return sample.subList(0, Math.min(PEX_SAMPLE_SIZE, sample.size()));
+    }
+
+    // [Count(4)]{[PeerId][Ip][Port(4)][AgeMs(8)]}
+    private void writePexEntries(DataOutputStream out, List<PeerInfo> peers) throws IOException {
+        long now = System.currentTimeMillis();
+        out.writeInt(peers.size());
+        for (PeerInfo p : peers) {
+            Protocol.writeString(out, p.id);
+            Protocol.writeString(out, p.ip);
+            out.writeInt(p.port);
+            out.writeLong(Math.max(0, now - p.lastSeen));
+        }
+    }
+
+    // Merge received entries; returns the number of previously unknown peers
+    private int readPexEntries(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > 4 * PEX_SAMPLE_SIZE)
+            throw new IOException("Invalid PEX entry count: " + count);
+        String myPeerId = (discoveryService != null) ? discoveryService.getPeerId() : "UNKNOWN";
+        long now = System.currentTimeMillis();
+        int added = 0;
+        boolean changed = false;
+        for (int i = 0; i < count; i++) {
+            String id = Protocol.readString(in);
+            String ip = Protocol.readString(in);
+            int port = in.readInt();
+            long seenAt = now - Math.max(0, in.readLong());
+            if (id.equals(myPeerId) || port <= 0)
+                continue;
+
+            PeerInfo info = knownPeers.get(id);
+            if (info == null) {
+                info = new PeerInfo(id, ip, port);
+                info.lastSeen = seenAt;
+                if (info.isExpired(now))
+                    continue; // Stale gossip
+                knownPeers.put(id, info);
+                System.out.println("DEBUG PEX: ✓ Learned peer " + id + "@" + ip + ":" + port);
+                added++;
+                changed = true;
+            } else if (!info.manual && seenAt > info.lastSeen) {
+                info.lastSeen = seenAt;
+            }
+        }
+        if (changed && guiUpdateCallback != null)
+            guiUpdateCallback.run();
+        return added;
+    }
+
+    @Override
+    public int getKnownPeerCount() {
+        return knownPeers.size();
+    }
+
+    @Override
+    public void onPeerAnnounce(String peerId, String ipAddress, int port, long announceIntervalMs) {
+        onPeerFound(peerId, ipAddress, port);
+        PeerInfo info = knownPeers.get(peerId);
+        if (info != null)
+            info.announceIntervalMs = announceIntervalMs;
+    }
     private DiscoveryService discoveryService;
     private FileManager fileManager;
+    private DhtNode dhtNode; // Optional, null when the DHT is disabled
     private Runnable guiUpdateCallback;
 
     public void setDiscoveryService(DiscoveryService ds) {
@@ -33,11 +261,20 @@ public class PeerManager implements DiscoveryService.PeerDiscoveryListener {
         this.fileManager = fm;
     }
 
+    public void setDhtNode(DhtNode dhtNode) {
+        this.dhtNode = dhtNode;
+    }
+
     public interface SearchResultListener {
         void onSearchResult(String fileName, long size, String hash, String peerId);
     }
 
+    public interface FileRemovedListener {
+        void onFileRemoved(String hash, String peerId);
+    }
+
     private SearchResultListener searchListener;
+    private FileRemovedListener fileRemovedListener;
 
     public void setGuiCallback(Runnable callback) {
         this.guiUpdateCallback = callback;
@@ -47,6 +284,10 @@ public class PeerManager implements DiscoveryService.PeerDiscoveryListener {
         this.searchListener = listener;
     }
 
+    public void setFileRemovedListener(FileRemovedListener listener) {
+        this.fileRemovedListener = listener;
+    }
+
     @Override
     public void onPeerFound(String peerId, String ipAddress, int port) {
         System.out.println("DEBUG PeerManager.onPeerFound: peerId=" + peerId + ", IP=" + ipAddress + ", port=" + port);
@@ -55,6 +296,10 @@ public class PeerManager implements DiscoveryService.PeerDiscoveryListener {
             info = new PeerInfo(peerId, ipAddress, port);
             knownPeers.put(peerId, info);
             System.out.println("DEBUG: ✓ New Peer Discovered: " + peerId + "@" + ipAddress + " (Total peers: " + knownPeers.size() + ")");
+            // LAN peers double as DHT bootstrap nodes (all peers use the same DHT_PORT)
+            DhtNode dht = dhtNode;
+            if (dht != null)
+                dht.addNode(new InetSocketAddress(ipAddress, dht.getPort()));
             if (guiUpdateCallback != null)
                 guiUpdateCallback.run();
         } else {
@@ -75,28 +320,40 @@ public class PeerManager implements DiscoveryService.PeerDiscoveryListener {
                 return;
             String senderId = parts[1];
 
-            // Register peer if unknown (implicit discovery)
-            onPeerFound(senderId, ip, port);
+            // No implicit discovery here: a query may arrive through a relay, and the UDP
+            // port is not the FileServer port. Responses register their sender once parsed.
 
             if (type == com.network.p2p.network.Protocol.TYPE_QUERY_FILES) {
                 if (parts.length < 3)
                     return;
-                String query = parts[2];
+                // Payload: Q:<queryId>:<query> (plain <query> from older peers)
+                String payload = parts[2];
+                String queryId;
+                String query;
+                if (payload.startsWith("Q:") && payload.indexOf(':', 2) > 0) {
+                    int sep = payload.indexOf(':', 2);
+                    queryId = payload.substring(2, sep);
+                    query = payload.substring(sep + 1);
+                } else {
+                    queryId = Integer.toHexString(payload.hashCode());
+                    query = payload;
+                }
                 if (fileManager != null) {
-                    FileManager.SharedFile file = fileManager.searchFile(query);
-                    if (file != null) {
+                    List<FileManager.SharedFile> files = fileManager.search(query, MAX_QUERY_HITS);
+                    if (!files.isEmpty()) {
                         // Response should contain OUR peerId (the responder), not the sender's
                         String myPeerId = (discoveryService != null) ? discoveryService.getPeerId() : "UNKNOWN";
                         
                         // Get our FileServer port to include in response
                         int myFileServerPort = (discoveryService != null) ? discoveryService.getFileServerPort() : 50001;
                         
-                        String response = "ID:" + myPeerId + ":QUERY_HIT:" + file.name + ":" + file.size + ":"
-                                + file.hash + ":PORT:" + myFileServerPort;
-                        System.out.println("File found for query '" + query + "', sending response with port " + myFileServerPort);
+                        List<String> responses = buildHitFragments(myPeerId, queryId, myFileServerPort, files);
+                        System.out.println(files.size() + " file(s) found for query '" + query + "', sending "
+                                + responses.size() + " response packet(s) with port " + myFileServerPort);
                         if (discoveryService != null) {
-                            discoveryService.broadcastPacket(com.network.p2p.network.Protocol.TYPE_RESPONSE_FILES,
-                                    response, 1);
+                            for (String response : responses) {
+                                discoveryService.sendResponse(queryId, response);
+                            }
                         }
                     }
                 }
@@ -111,7 +368,9 @@ public class PeerManager implements DiscoveryService.PeerDiscoveryListener {
                 if (parts.length < 3)
                     return;
                 String payload = parts[2];
-                if (payload.startsWith("QUERY_HIT:")) {
+                if (payload.startsWith("QUERY_HITS:")) {
+                    handleHitFragment(senderId, ip, payload);
+                } else if (payload.startsWith("QUERY_HIT:")) {
                     String[] hitParts = payload.split(":"); // QUERY_HIT, fname, size, hash, PORT, port
                     System.out.println("  - hitParts: " + java.util.Arrays.toString(hitParts));
                     
@@ -146,6 +405,130 @@ public class PeerManager implements DiscoveryService.PeerDiscoveryListener {
         }
     }
 
+    /**
+     * Floods a search query. Answers arrive through the SearchResultListener.
+     */
+    public void search(String query) {
+        if (discoveryService == null)
+            return;
+        discoveryService.search(query, QUERY_TTL);
+    }
+
+    /**
+     * Packs hits into as few datagrams as possible.
+     * Format: ID:<peerId>:QUERY_HITS:<queryId>:<fragIndex>:<fragCount>:PORT:<port>:<hit>;<hit>;...
+     * where each hit is <url-encoded name>,<size>,<hash>.
+     */
+    static List<String> buildHitFragments(String myPeerId, String queryId, int fileServerPort,
+                                          List<FileManager.SharedFile> files) {
+        // Worst-case header (fragment numbers up to 3 digits) so every packet fits MAX_PACKET_SIZE
+        String headerTemplate = "ID:" + myPeerId + ":QUERY_HITS:" + queryId + ":000:000:PORT:" + fileServerPort + ":";
+        int budget = Protocol.MAX_PACKET_SIZE - 2 - Protocol.RELAY_PREFIX_RESERVE
+                - headerTemplate.getBytes(StandardCharsets.UTF_8).length;
+
+        List<String> bodies = new ArrayList<>();
+        StringBuilder body = new StringBuilder();
+        for (FileManager.SharedFile file : files) {
+            String hit = URLEncoder.encode(file.name, StandardCharsets.UTF_8) + "," + file.size + "," + file.hash;
+            if (hit.length() > budget) {
+                System.err.println("Query hit too large for one packet, skipping: " + file.name);
+                continue;
+            }
+            int extra = (body.length() == 0 ? 0 : 1) + hit.length();
+            if (body.length() + extra > budget) {
+                bodies.add(body.toString());
+                body.setLength(0);
+            }
+            if (body.length() > 0)
+                body.append(';');
+            body.append(hit);
+        }
+        if (body.length() > 0)
+            bodies.add(body.toString());
+
+        List<String> packets = new ArrayList<>();
+        for (int i = 0; i < bodies.size(); i++) {
+            packets.add("ID:" + myPeerId + ":QUERY_HITS:" + queryId + ":" + i + ":" + bodies.size()
+                    + ":PORT:" + fileServerPort + ":" + bodies.get(i));
+        }
+        return packets;
+    }
+
+    // payload: QUERY_HITS:<queryId>:<fragIndex>:<fragCount>:PORT:<port>:<hits>
+    private void handleHitFragment(String senderId, String ip, String payload) {
+        String[] f = payload.split(":", 7);
+        if (f.length < 7 || !f[4].equals("PORT"))
+            return;
+        int fragIndex = Integer.parseInt(f[2]);
+        int fragCount = Integer.parseInt(f[3]);
+        // Every fragment carries at least one hit, so a real responder never sends more than MAX_QUERY_HITS
+        if (fragCount <= 0 || fragCount > MAX_QUERY_HITS || fragIndex < 0 || fragIndex >= fragCount)
+            return;
+
+        String key = senderId + ":" + f[1];
+        if (!pendingHits.containsKey(key) && pendingHitSets(senderId) >= MAX_PENDING_HIT_SETS_PER_PEER) {
+            System.err.println("DEBUG PeerManager: Too many incomplete hit sets from " + senderId + ", dropping fragment");
+            return;
+        }
+        PendingHits pending = pendingHits.computeIfAbsent(key, k -> new PendingHits(fragCount));
+        boolean complete;
+        synchronized (pending) {
+            if (pending.fragments.length != fragCount || pending.fragments[fragIndex] != null)
+                return; // Duplicate or inconsistent fragment
+            pending.fragments[fragIndex] = f[6];
+            pending.ip = ip;
+            pending.fileServerPort = Integer.parseInt(f[5]);
+            pending.received++;
+            complete = pending.received == fragCount;
+        }
+        System.out.println("DEBUG PeerManager: QUERY_HITS fragment " + (fragIndex + 1) + "/" + fragCount + " from " + senderId);
+        if (complete && pendingHits.remove(key) != null)
+            deliverHits(senderId, pending);
+    }
+
+    private int pendingHitSets(String senderId) {
+        String prefix = senderId + ":";
+        int count = 0;
+        for (String key : pendingHits.keySet()) {
+            if (key.startsWith(prefix) && key.lastIndexOf(':') == senderId.length())
+                count++;
+        }
+        return count;
+    }
+
+    private void flushStaleHits() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, PendingHits> entry : pendingHits.entrySet()) {
+            if (now - entry.getValue().createdAt > REASSEMBLY_TIMEOUT_MS && pendingHits.remove(entry.getKey()) != null) {
+                String senderId = entry.getKey().substring(0, entry.getKey().lastIndexOf(':'));
+                System.err.println("DEBUG PeerManager: Delivering incomplete hit set from " + senderId);
+                deliverHits(senderId, entry.getValue());
+            }
+        }
+    }
+
+    private void deliverHits(String senderId, PendingHits pending) {
+        onPeerFound(senderId, pending.ip, pending.fileServerPort);
+        int count = 0;
+        synchronized (pending) {
+            for (String fragment : pending.fragments) {
+                if (fragment == null || fragment.isEmpty())
+                    continue;
+                for (String hit : fragment.split(";")) {
+                    String[] fields = hit.split(",");
+                    if (fields.length != 3)
+                        continue;
+                    String fname = URLDecoder.decode(fields[0], StandardCharsets.UTF_8);
+                    long size = Long.parseLong(fields[1]);
+                    if (searchListener != null)
+                        searchListener.onSearchResult(fname, size, fields[2], senderId);
+                    count++;
+                }
+            }
+        }
+        System.out.println("✅ " + count + " search result(s) from " + senderId);
+    }
+
     public Map<String, PeerInfo> getPeers() {
         return knownPeers;
     }
@@ -158,6 +541,7 @@ public class PeerManager implements DiscoveryService.PeerDiscoveryListener {
      */
     public void addManualPeer(String peerId, String ipAddress, int port) {
         PeerInfo info = new PeerInfo(peerId, ipAddress, port);
+        info.manual = true;
         knownPeers.put(peerId, info);
         System.out.println("✓ Manually added peer: " + peerId + "@" + ipAddress + ":" + port);
         
@@ -170,56 +554,108 @@ public class PeerManager implements DiscoveryService.PeerDiscoveryListener {
     }
     
     /**
-     * Fetch file list from a peer via TCP connection
+     * Syncs a peer's catalog via TCP. The first sync pages through a full snapshot; later syncs
+     * (e.g. after reconnecting) only transfer what was added or removed since the last version seen.
+     * The search listener is notified for new or changed files, the removal listener for removed ones.
      */
     private void fetchFileListFromPeer(String peerId, String ipAddress, int port) {
+        PeerCatalog state = peerCatalogs.computeIfAbsent(peerId, k -> new PeerCatalog());
         new Thread(() -> {
-            System.out.println("🔍 DEBUG: Starting fetchFileListFromPeer for " + peerId + " at " + ipAddress + ":" + port);
-            try (java.net.Socket socket = new java.net.Socket(ipAddress, port);
-                 java.io.DataOutputStream out = new java.io.DataOutputStream(socket.getOutputStream());
-                 java.io.DataInputStream in = new java.io.DataInputStream(socket.getInputStream())) {
-                
-                System.out.println("🔍 DEBUG: TCP connection established to " + peerId);
-                
-                // Send LIST_FILES request (type = 1)
-                System.out.println("🔍 DEBUG: Sending LIST_FILES request (type=1) to " + peerId);
-                out.writeInt(1);
-                out.flush();
-                System.out.println("🔍 DEBUG: Request sent, waiting for response...");
-                
-                // Read response: [FileCount(4)] then for each file: [NameLen(4)][Name][Size(8)][HashLen(4)][Hash]
-                int fileCount = in.readInt();
-                System.out.println("✅ Received " + fileCount + " files from " + peerId);
-                
-                for (int i = 0; i < fileCount; i++) {
-                    System.out.println("🔍 DEBUG: Reading file #" + (i+1) + "/" + fileCount);
-                    int nameLen = in.readInt();
-                    byte[] nameBytes = new byte[nameLen];
-                    in.readFully(nameBytes);
-                    String fileName = new String(nameBytes, "UTF-8");
-                    
-                    long fileSize = in.readLong();
-                    
-                    int hashLen = in.readInt();
-                    byte[] hashBytes = new byte[hashLen];
-                    in.readFully(hashBytes);
-                    String fileHash = new String(hashBytes, "UTF-8");
-                    
-                    System.out.println("✅ File #" + (i+1) + ": " + fileName + " (" + fileSize + " bytes, hash: " + fileHash.substring(0, 16) + "...)");
-                    
-                    // Notify search listener as if this was a search result
-                    if (searchListener != null) {
-                        System.out.println("🔍 DEBUG: Notifying searchListener for " + fileName);
-                        searchListener.onSearchResult(fileName, fileSize, fileHash, peerId);
-                    } else {
-                        System.err.println("❌ DEBUG: searchListener is NULL! Cannot notify GUI!");
-                    }
+            synchronized (state) {
+                System.out.println("🔍 DEBUG: Syncing catalog of " + peerId + " at " + ipAddress + ":" + port
+                        + " from version " + state.version);
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(ipAddress, port), CATALOG_TIMEOUT_MS);
+                    socket.setSoTimeout(CATALOG_TIMEOUT_MS);
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    out.writeInt(Protocol.REQUEST_CATALOG);
+                    syncCatalog(peerId, state, in, out);
+                    System.out.println("✅ Catalog of " + peerId + " at version " + state.version + " ("
+                            + state.files.size() + " files)");
+                } catch (Exception e) {
+                    System.err.println("❌ Failed to sync catalog from " + peerId + ": " + e.getMessage());
                 }
-                System.out.println("✅ Successfully fetched all files from " + peerId);
-            } catch (Exception e) {
-                System.err.println("❌ Failed to fetch file list from " + peerId + ": " + e.getMessage());
-                e.printStackTrace();
             }
         }).start();
     }
+
+    private void syncCatalog(String peerId, PeerCatalog state, DataInputStream in, DataOutputStream out) throws IOException {
+        String cursor = ""; // Paging cursor of a full snapshot
+        Set<String> inSnapshot = null;
+        long snapshotVersion = 0;
+        int added = 0, removed = 0;
+
+        while (true) {
+            // Request: [Epoch(8)][SinceVersion(8)][AfterHash][MaxEntries(4)]
+            out.writeLong(state.epoch);
+            out.writeLong(inSnapshot != null ? snapshotVersion : state.version);
+            Protocol.writeString(out, cursor);
+            out.writeInt(CATALOG_PAGE_SIZE);
+            out.flush();
+
+            // Response: [Epoch(8)][Version(8)][Full(1)][HasMore(1)][Count(4)]{[Op(1)][Hash][Name][Size(8)]}
+            long epoch = in.readLong();
+            long version = in.readLong();
+            boolean full = in.readBoolean();
+            boolean hasMore = in.readBoolean();
+            int count = in.readInt();
+            if (full && cursor.isEmpty()) {
+                inSnapshot = new HashSet<>();
+                snapshotVersion = version;
+            }
+
+            for (int i = 0; i < count; i++) {
+                byte op = in.readByte();
+                String hash = Protocol.readString(in);
+                String name = Protocol.readString(in);
+                long size = in.readLong();
+                if (op == FileCatalog.OP_REMOVE) {
+                    if (state.files.remove(hash) != null) {
+                        removed++;
+                        if (fileRemovedListener != null)
+                            fileRemovedListener.onFileRemoved(hash, peerId);
+                    }
+                    continue;
+                }
+                if (inSnapshot != null)
+                    inSnapshot.add(hash);
+                FileCatalog.Entry previous = state.files.get(hash);
+                if (previous == null || !previous.name.equals(name) || previous.size != size) {
+                    state.files.put(hash, new FileCatalog.Entry(op, hash, name, size, version));
+                    added++;
+                    if (searchListener != null)
+                        searchListener.onSearchResult(name, size, hash, peerId);
+                }
+                if (full)
+                    cursor = hash;
+            }
+
+            if (full) {
+                if (hasMore)
+                    continue;
+                // Snapshot complete: anything we knew that it didn't contain is gone
+                for (String hash : new ArrayList<>(state.files.keySet())) {
+                    if (!inSnapshot.contains(hash)) {
+                        state.files.remove(hash);
+                        removed++;
+                        if (fileRemovedListener != null)
+                            fileRemovedListener.onFileRemoved(hash, peerId);
+                    }
+                }
+                // Catch up on changes made while we were paging
+                state.epoch = epoch;
+                state.version = snapshotVersion;
+                cursor = "";
+                inSnapshot = null;
+                continue;
+            }
+
+            state.epoch = epoch;
+            state.version = version;
+            if (!hasMore)
+                break;
+        }
+        System.out.println("✅ Catalog delta from " + peerId + ": +" + added + " / -" + removed);
+    }
 }
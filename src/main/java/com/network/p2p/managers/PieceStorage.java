@@ -0,0 +1,64 @@
+package com.network.p2p.managers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte store behind a download or a shared file. Downloads write received blocks into it and
+ * the FileServer reads chunks out of it, so both sides work the same on every backend.
+ * Reads may run concurrently with each other and with writes to other ranges.
+ */
+public interface PieceStorage extends Closeable {
+
+    enum Type {
+        FILE, // FileChannel on a pre-allocated file
+        MMAP, // Memory-mapped file
+        MEMORY; // Heap only, nothing touches the disk (tests, watch-only viewing)
+
+        /** Backend named by PIECE_STORAGE (file|mmap|memory), FILE if unset. */
+        public static Type fromEnvironment() {
+            String env = System.getenv("PIECE_STORAGE");
+            if (env == null || env.trim().isEmpty())
+                return FILE;
+            try {
+                return valueOf(env.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid PIECE_STORAGE value: " + env + ", using FILE");
+                return FILE;
+            }
+        }
+    }
+
+    /**
+     * Opens storage of the given size. File-backed types create and pre-allocate the file unless
+     * readOnly; MEMORY ignores the file.
+     */
+    static PieceStorage open(Type type, File file, long size, boolean readOnly) throws IOException {
+        switch (type) {
+            case MMAP:
+                return new MappedFileStorage(file, size, readOnly);
+            case MEMORY:
+                return new MemoryStorage(size);
+            default:
+                return new FileChannelStorage(file, size, readOnly);
+        }
+    }
+
+    Type getType();
+
+    long size();
+
+    /** Reads up to len bytes at offset; returns the number read (short only at the end). */
+    int read(long offset, byte[] buffer, int bufferOffset, int len) throws IOException;
+
+    /** Writes the buffers back to back starting at offset. */
+    void write(long offset, ByteBuffer[] buffers) throws IOException;
+
+    /** Makes written data durable (no-op for MEMORY). */
+    void flush() throws IOException;
+
+    /** The backing file, or null for MEMORY. */
+    File getFile();
+}
@@ -0,0 +1,71 @@
+package com.network.p2p.managers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the PieceStorage backends on a download-like workload:
+ * 16 KB blocks written one chunk at a time in rarest-first (shuffled) chunk order,
+ * a flush, then every 256 KB chunk read back in random order as the FileServer would.
+ *
+ * Usage: java -cp target/p2p-video-stream-1.0-SNAPSHOT.jar com.network.p2p.managers.StorageBenchmark [sizeMB] [dir]
+ */
+public class StorageBenchmark {
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+        long size = (long) sizeMb * 1024 * 1024;
+        int chunks = (int) (size / CHUNK_SIZE);
+
+        byte[] block = new byte[BLOCK_SIZE];
+        new Random(42).nextBytes(block);
+        List<Integer> writeOrder = shuffled(chunks, 1);
+        List<Integer> readOrder = shuffled(chunks, 2);
+
+        System.out.println("PieceStorage benchmark: " + sizeMb + " MB in " + dir.getAbsolutePath());
+        System.out.println(String.format("%-8s %12s %10s %12s", "Backend", "Write MB/s", "Flush ms", "Read MB/s"));
+        for (PieceStorage.Type type : PieceStorage.Type.values()) {
+            File file = new File(dir, "storage-benchmark-" + type.name().toLowerCase() + ".bin");
+            try (PieceStorage storage = PieceStorage.open(type, file, size, false)) {
+                long start = System.nanoTime();
+                for (int chunk : writeOrder) {
+                    ByteBuffer[] run = new ByteBuffer[CHUNK_SIZE / BLOCK_SIZE];
+                    for (int i = 0; i < run.length; i++)
+                        run[i] = ByteBuffer.wrap(block);
+                    storage.write((long) chunk * CHUNK_SIZE, run);
+                }
+                long written = System.nanoTime();
+                storage.flush();
+                long flushed = System.nanoTime();
+
+                byte[] buffer = new byte[CHUNK_SIZE];
+                for (int chunk : readOrder)
+                    storage.read((long) chunk * CHUNK_SIZE, buffer, 0, CHUNK_SIZE);
+                long read = System.nanoTime();
+
+                System.out.println(String.format("%-8s %12.1f %10d %12.1f", type,
+                        sizeMb / ((written - start) / 1e9),
+                        (flushed - written) / 1_000_000,
+                        sizeMb / ((read - flushed) / 1e9)));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    private static List<Integer> shuffled(int count, long seed) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            order.add(i);
+        Collections.shuffle(order, new Random(seed));
+        return order;
+    }
+}
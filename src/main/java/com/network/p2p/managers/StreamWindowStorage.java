@@ -0,0 +1,211 @@
+package com.network.p2p.managers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Heap storage for watch-only streaming that holds at most a fixed number of chunks, whatever
+ * the file size. Chunks live in slots around the playhead; when a write needs a slot and all are
+ * taken, the chunk that matters least for playback is evicted (farthest behind the playhead
+ * first, then farthest ahead) and the EvictionListener is told, so the download forgets it and
+ * fetches it again if playback seeks back there.
+ */
+public class StreamWindowStorage implements PieceStorage {
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int DEFAULT_WINDOW_MB = 32;
+
+    public interface EvictionListener {
+        void onChunkEvicted(int chunkIndex);
+    }
+
+    // One resident chunk; filled tracks which blocks were actually written into this slot
+    private static class Slot {
+        final byte[] data = new byte[CHUNK_SIZE];
+        final BitSet filled = new BitSet(DownloadManager.BLOCKS_PER_CHUNK);
+    }
+
+    private final long size;
+    private final int capacityChunks;
+    private final Map<Integer, Slot> resident = new HashMap<>(); // chunkIndex -> slot
+    private final ArrayDeque<Slot> freeSlots = new ArrayDeque<>();
+    private int allocatedSlots = 0;
+    private volatile int playheadChunk = 0;
+    private boolean closed = false;
+    private EvictionListener evictionListener;
+
+    public StreamWindowStorage(long size, int capacityChunks) {
+        this.size = size;
+        this.capacityChunks = Math.max(4, capacityChunks);
+    }
+
+    /** Window size in chunks from STREAM_WINDOW_MB (default 32 MB). */
+    public static int capacityFromEnvironment() {
+        int windowMb = DEFAULT_WINDOW_MB;
+        String env = System.getenv("STREAM_WINDOW_MB");
+        if (env != null && !env.trim().isEmpty()) {
+            try {
+                windowMb = Math.max(1, Integer.parseInt(env.trim()));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid STREAM_WINDOW_MB value: " + env + ", using " + DEFAULT_WINDOW_MB);
+            }
+        }
+        return windowMb * (1024 * 1024 / CHUNK_SIZE);
+    }
+
+    public void setEvictionListener(EvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    public int getCapacityChunks() {
+        return capacityChunks;
+    }
+
+    /** Chunks past the playhead the downloader may fill; the rest of the window keeps recent history for short rewinds. */
+    public int getReadAheadChunks() {
+        return capacityChunks - capacityChunks / 4;
+    }
+
+    public void setPlayheadChunk(int chunkIndex) {
+        this.playheadChunk = chunkIndex;
+    }
+
+    public int getPlayheadChunk() {
+        return playheadChunk;
+    }
+
+    public synchronized int getResidentChunks() {
+        return resident.size();
+    }
+
+    /** True if every block in [offset, offset + length) was written and not evicted since. */
+    public synchronized boolean holds(long offset, int length) {
+        long end = offset + length;
+        for (long position = offset; position < end; ) {
+            Slot slot = resident.get((int) (position / CHUNK_SIZE));
+            int block = (int) (position % CHUNK_SIZE) / DownloadManager.BLOCK_SIZE;
+            if (slot == null || !slot.filled.get(block))
+                return false;
+            position = (position / DownloadManager.BLOCK_SIZE + 1) * DownloadManager.BLOCK_SIZE;
+        }
+        return true;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.MEMORY;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int read(long offset, byte[] buffer, int bufferOffset, int len) throws IOException {
+        int total = (int) Math.max(0, Math.min(len, size - offset));
+        synchronized (this) {
+            int done = 0;
+            while (done < total) {
+                long position = offset + done;
+                int chunkIndex = (int) (position / CHUNK_SIZE);
+                int index = (int) (position % CHUNK_SIZE);
+                int n = Math.min(total - done, CHUNK_SIZE - index);
+                Slot slot = resident.get(chunkIndex);
+                if (slot == null)
+                    throw new IOException("Chunk " + chunkIndex + " is not in the stream window");
+                System.arraycopy(slot.data, index, buffer, bufferOffset + done, n);
+                done += n;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer[] buffers) {
+        List<Integer> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (closed)
+                return; // Late write of a cancelled stream
+            long position = offset;
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    int chunkIndex = (int) (position / CHUNK_SIZE);
+                    int index = (int) (position % CHUNK_SIZE);
+                    int n = Math.min(buffer.remaining(), CHUNK_SIZE - index);
+                    Slot slot = slotFor(chunkIndex, evicted);
+                    buffer.get(slot.data, index, n);
+                    slot.filled.set(index / DownloadManager.BLOCK_SIZE,
+                            (index + n + DownloadManager.BLOCK_SIZE - 1) / DownloadManager.BLOCK_SIZE);
+                    position += n;
+                }
+            }
+        }
+        // Outside our lock: the listener takes the download lock
+        EvictionListener listener = evictionListener;
+        if (listener != null) {
+            for (int chunkIndex : evicted)
+                listener.onChunkEvicted(chunkIndex);
+        }
+    }
+
+    private Slot slotFor(int chunkIndex, List<Integer> evicted) {
+        Slot slot = resident.get(chunkIndex);
+        if (slot != null)
+            return slot;
+        if (freeSlots.isEmpty() && allocatedSlots < capacityChunks) {
+            freeSlots.add(new Slot());
+            allocatedSlots++;
+        }
+        if (freeSlots.isEmpty()) {
+            int victim = pickVictim(chunkIndex);
+            Slot freed = resident.remove(victim);
+            freed.filled.clear();
+            freeSlots.add(freed);
+            evicted.add(victim);
+        }
+        slot = freeSlots.poll();
+        resident.put(chunkIndex, slot);
+        return slot;
+    }
+
+    // Farthest behind the playhead first, then farthest ahead of it
+    private int pickVictim(int incoming) {
+        int playhead = playheadChunk;
+        int victim = -1;
+        long victimScore = -1;
+        for (int chunkIndex : resident.keySet()) {
+            if (chunkIndex == incoming)
+                continue;
+            long score = chunkIndex < playhead ? (long) Integer.MAX_VALUE + (playhead - chunkIndex) : chunkIndex - playhead;
+            if (score > victimScore) {
+                victim = chunkIndex;
+                victimScore = score;
+            }
+        }
+        return victim;
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to make durable
+    }
+
+    @Override
+    public File getFile() {
+        return null;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        resident.clear();
+        freeSlots.clear();
+    }
+}
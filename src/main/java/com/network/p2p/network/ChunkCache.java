@@ -0,0 +1,137 @@
+package com.network.p2p.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded off-heap LRU cache for hot chunks served by the FileServer.
+ * Chunks live in a single direct buffer split into fixed CHUNK_SIZE slots,
+ * so cached data never touches the Java heap or the GC.
+ */
+public class ChunkCache {
+
+    private final int slotSize;
+    private final int slotCount;
+    private final ByteBuffer slab;
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+
+    // Key "hash:chunkIndex" -> Entry, in access order (eldest = least recently used)
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class Entry {
+        final int slot;
+        final int length;
+
+        Entry(int slot, int length) {
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    public ChunkCache(long capacityBytes, int slotSize) {
+        this.slotSize = slotSize;
+        this.slotCount = (int) Math.max(0, Math.min(Integer.MAX_VALUE / slotSize, capacityBytes / slotSize));
+        this.slab = ByteBuffer.allocateDirect(slotCount * slotSize);
+        for (int i = 0; i < slotCount; i++) {
+            freeSlots.add(i);
+        }
+        System.out.println("DEBUG ChunkCache: " + slotCount + " slots x " + (slotSize / 1024) + " KB off-heap");
+    }
+
+    private static String key(String hash, int chunkIndex) {
+        return hash + ":" + chunkIndex;
+    }
+
+    /**
+     * Copies a cached chunk into dest.
+     * @return number of bytes copied, or -1 on a miss
+     */
+    public int get(String hash, int chunkIndex, byte[] dest) {
+        synchronized (this) {
+            Entry entry = entries.get(key(hash, chunkIndex));
+            if (entry != null) {
+                ByteBuffer view = slab.duplicate();
+                view.position(entry.slot * slotSize);
+                view.get(dest, 0, entry.length);
+                hits.incrementAndGet();
+                return entry.length;
+            }
+        }
+        misses.incrementAndGet();
+        return -1;
+    }
+
+    public void put(String hash, int chunkIndex, byte[] data, int length) {
+        if (slotCount == 0 || length <= 0 || length > slotSize)
+            return;
+
+        String key = key(hash, chunkIndex);
+        synchronized (this) {
+            if (entries.containsKey(key))
+                return;
+
+            if (freeSlots.isEmpty()) {
+                // Evict least recently used chunk
+                Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+                Entry eldest = it.next().getValue();
+                it.remove();
+                freeSlots.add(eldest.slot);
+                evictions.incrementAndGet();
+            }
+
+            int slot = freeSlots.poll();
+            ByteBuffer view = slab.duplicate();
+            view.position(slot * slotSize);
+            view.put(data, 0, length);
+            entries.put(key, new Entry(slot, length));
+        }
+    }
+
+    /** Drops every cached chunk of a file (e.g. after the file changed on disk). */
+    public synchronized void invalidate(String hash) {
+        String prefix = hash + ":";
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+                freeSlots.add(e.getValue().slot);
+                it.remove();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getCachedChunkCount() {
+        return entries.size();
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public String getStats() {
+        return String.format("hits=%d misses=%d evictions=%d cached=%d/%d hitRate=%.1f%%",
+                getHits(), getMisses(), getEvictions(), getCachedChunkCount(), slotCount, getHitRate() * 100);
+    }
+}
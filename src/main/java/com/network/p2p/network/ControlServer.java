@@ -0,0 +1,441 @@
+package com.network.p2p.network;
+
+import com.network.p2p.managers.DownloadManager;
+import com.network.p2p.managers.FileManager;
+import com.network.p2p.managers.PeerManager;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP/JSON control API for headless peers, so scripts and orchestration can drive a node without
+ * the GUI:
+ *
+ * GET    /api/status                 peer id, ports and counts
+ * GET    /api/peers                  known peers
+ * POST   /api/peers?id=&ip=&port=    add a manual peer (its catalog is synced)
+ * GET    /api/files                  files shared by this node
+ * GET    /api/catalog[?peer=]        remote files learned from catalogs and searches
+ * POST   /api/search?q=              flood a search; hits show up in /api/catalog
+ * GET    /api/downloads              progress, playable buffer and throughput per download
+ * POST   /api/downloads?hash=[&peers=a,b]  download a catalog file (from all its peers by default)
+ * DELETE /api/downloads?hash=        cancel a download
+ *
+ * Enabled by CONTROL_PORT and bound to CONTROL_BIND (loopback unless set, the API is unauthenticated).
+ */
+public class ControlServer {
+    private static final String DEFAULT_BIND = "127.0.0.1";
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    // A file some remote peer shares, fed by PeerManager's search and removal listeners
+    private static class RemoteFile {
+        final String hash;
+        volatile String name;
+        volatile long size;
+        final Set<String> peerIds = ConcurrentHashMap.newKeySet();
+
+        RemoteFile(String hash, String name, long size) {
+            this.hash = hash;
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    private final PeerManager peerManager;
+    private final FileManager fileManager;
+    private final DownloadManager downloadManager;
+    private final DiscoveryService discoveryService;
+    private final Map<String, RemoteFile> remoteFiles = new ConcurrentHashMap<>(); // Hash -> file
+    private final ExecutorService executor = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "ControlServer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final InetSocketAddress address;
+    private HttpServer server;
+
+    public ControlServer(PeerManager peerManager, FileManager fileManager, DownloadManager downloadManager,
+                         DiscoveryService discoveryService, InetSocketAddress address) {
+        this.peerManager = peerManager;
+        this.fileManager = fileManager;
+        this.downloadManager = downloadManager;
+        this.discoveryService = discoveryService;
+        this.address = address;
+
+        peerManager.setSearchListener((fileName, size, hash, peerId) -> {
+            RemoteFile file = remoteFiles.computeIfAbsent(hash, h -> new RemoteFile(h, fileName, size));
+            file.name = fileName;
+            file.size = size;
+            file.peerIds.add(peerId);
+        });
+        peerManager.setFileRemovedListener((hash, peerId) -> {
+            RemoteFile file = remoteFiles.get(hash);
+            if (file != null) {
+                file.peerIds.remove(peerId);
+                if (file.peerIds.isEmpty())
+                    remoteFiles.remove(hash, file);
+            }
+        });
+    }
+
+    /** Control server from CONTROL_PORT / CONTROL_BIND, or null when CONTROL_PORT is unset. */
+    public static ControlServer fromEnvironment(PeerManager peerManager, FileManager fileManager,
+                                                DownloadManager downloadManager, DiscoveryService discoveryService) {
+        String envPort = System.getenv("CONTROL_PORT");
+        if (envPort == null || envPort.trim().isEmpty())
+            return null;
+        String bind = System.getenv("CONTROL_BIND");
+        if (bind == null || bind.trim().isEmpty())
+            bind = DEFAULT_BIND;
+        try {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(bind.trim()), Integer.parseInt(envPort.trim()));
+            return new ControlServer(peerManager, fileManager, downloadManager, discoveryService, address);
+        } catch (Exception e) {
+            System.err.println("Control API disabled, invalid CONTROL_PORT=" + envPort + " / CONTROL_BIND=" + bind + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null)
+            return;
+        server = HttpServer.create(address, 0);
+        server.createContext("/api/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        System.out.println("ControlServer listening on " + address.getAddress().getHostAddress() + ":" + getPort());
+    }
+
+    public synchronized int getPort() {
+        return server != null ? server.getAddress().getPort() : 0;
+    }
+
+    public synchronized void stop() {
+        if (server == null)
+            return;
+        server.stop(0);
+        server = null;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String resource = path.substring("/api/".length());
+            if (resource.endsWith("/"))
+                resource = resource.substring(0, resource.length() - 1);
+
+            switch (resource) {
+                case "status":
+                    if (requireMethod(exchange, method, "GET"))
+                        send(exchange, 200, status());
+                    break;
+                case "peers":
+                    if (method.equals("POST"))
+                        addPeer(exchange, params);
+                    else if (requireMethod(exchange, method, "GET"))
+                        send(exchange, 200, peers());
+                    break;
+                case "files":
+                    if (requireMethod(exchange, method, "GET"))
+                        send(exchange, 200, sharedFiles());
+                    break;
+                case "catalog":
+                    if (requireMethod(exchange, method, "GET"))
+                        send(exchange, 200, catalog(params.get("peer")));
+                    break;
+                case "search":
+                    if (requireMethod(exchange, method, "POST"))
+                        search(exchange, params);
+                    break;
+                case "downloads":
+                    if (method.equals("POST"))
+                        startDownload(exchange, params);
+                    else if (method.equals("DELETE"))
+                        cancelDownload(exchange, params);
+                    else if (requireMethod(exchange, method, "GET"))
+                        send(exchange, 200, downloads());
+                    break;
+                default:
+                    sendError(exchange, 404, "Unknown resource: " + path);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("ControlServer: " + e.getMessage());
+            sendError(exchange, 500, String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String status() {
+        StringBuilder json = new StringBuilder("{");
+        field(json, "peerId", discoveryService.getPeerId()).append(',');
+        json.append("\"fileServerPort\":").append(downloadManager.getLocalFileServerPort()).append(',');
+        json.append("\"peers\":").append(peerManager.getPeers().size()).append(',');
+        json.append("\"sharedFiles\":").append(fileManager.getFileList().size()).append(',');
+        json.append("\"catalogFiles\":").append(remoteFiles.size()).append(',');
+        json.append("\"downloads\":").append(downloadManager.getActiveDownloads().size());
+        return json.append('}').toString();
+    }
+
+    private String peers() {
+        StringBuilder json = new StringBuilder("[");
+        for (PeerManager.PeerInfo peer : peerManager.getPeers().values()) {
+            if (json.length() > 1)
+                json.append(',');
+            json.append('{');
+            field(json, "id", peer.id).append(',');
+            field(json, "ip", peer.ip).append(',');
+            json.append("\"port\":").append(peer.port).append(',');
+            json.append("\"lastSeen\":").append(peer.lastSeen).append(',');
+            json.append("\"manual\":").append(peer.manual);
+            json.append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private void addPeer(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String id = params.get("id");
+        String ip = params.get("ip");
+        int port;
+        try {
+            port = Integer.parseInt(params.getOrDefault("port", ""));
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "port is required");
+            return;
+        }
+        if (ip == null || ip.isEmpty()) {
+            sendError(exchange, 400, "ip is required");
+            return;
+        }
+        if (id == null || id.isEmpty())
+            id = ip + ":" + port;
+        peerManager.addManualPeer(id, ip, port);
+        StringBuilder json = new StringBuilder("{");
+        field(json, "id", id);
+        send(exchange, 201, json.append('}').toString());
+    }
+
+    private String sharedFiles() {
+        StringBuilder json = new StringBuilder("[");
+        for (FileManager.SharedFile file : fileManager.getFileList()) {
+            if (json.length() > 1)
+                json.append(',');
+            json.append('{');
+            field(json, "name", file.name).append(',');
+            json.append("\"size\":").append(file.size).append(',');
+            field(json, "hash", file.hash);
+            json.append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private String catalog(String peerFilter) {
+        StringBuilder json = new StringBuilder("[");
+        for (RemoteFile file : remoteFiles.values()) {
+            if (peerFilter != null && !file.peerIds.contains(peerFilter))
+                continue;
+            if (json.length() > 1)
+                json.append(',');
+            json.append('{');
+            field(json, "name", file.name).append(',');
+            json.append("\"size\":").append(file.size).append(',');
+            field(json, "hash", file.hash).append(',');
+            json.append("\"peers\":");
+            stringArray(json, file.peerIds);
+            json.append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private void search(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String query = params.get("q");
+        if (query == null || query.trim().isEmpty()) {
+            sendError(exchange, 400, "q is required");
+            return;
+        }
+        peerManager.search(query.trim());
+        StringBuilder json = new StringBuilder("{");
+        field(json, "query", query.trim());
+        send(exchange, 202, json.append('}').toString());
+    }
+
+    private String downloads() {
+        StringBuilder json = new StringBuilder("[");
+        for (DownloadManager.DownloadStatus status : downloadManager.getStatusSnapshot()) {
+            if (json.length() > 1)
+                json.append(',');
+            json.append('{');
+            field(json, "name", status.fileName).append(',');
+            field(json, "hash", status.hash).append(',');
+            json.append("\"size\":").append(status.fileSize).append(',');
+            json.append("\"progress\":").append(String.format(java.util.Locale.ROOT, "%.1f", status.getProgress())).append(',');
+            json.append("\"completedChunks\":").append(status.completedChunks).append(',');
+            json.append("\"totalChunks\":").append(status.totalChunks).append(',');
+            json.append("\"bufferedAheadBytes\":").append(Math.min(status.fileSize, (long) status.playableChunks * CHUNK_SIZE)).append(',');
+            json.append("\"bytesPerSecond\":").append((long) status.bytesPerSecond).append(',');
+            json.append("\"sources\":").append(status.sources).append(',');
+            json.append("\"complete\":").append(status.complete).append(',');
+            json.append("\"verifying\":").append(status.verifying).append(',');
+            json.append("\"watchOnly\":").append(status.watchOnly);
+            json.append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private void startDownload(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String hash = params.get("hash");
+        RemoteFile file = hash != null ? remoteFiles.get(hash) : null;
+        if (file == null) {
+            sendError(exchange, 404, "Unknown hash, search for it or add a peer that shares it first");
+            return;
+        }
+        if (downloadManager.getDownload(hash) != null) {
+            sendError(exchange, 409, "Already downloading " + file.name);
+            return;
+        }
+
+        Set<String> wanted = new HashSet<>(file.peerIds);
+        String peerList = params.get("peers");
+        if (peerList != null && !peerList.isEmpty()) {
+            wanted.clear();
+            for (String peerId : peerList.split(","))
+                wanted.add(peerId.trim());
+        }
+        Set<String> peerIds = new HashSet<>();
+        Map<String, String> peerIdToIp = new HashMap<>();
+        Map<String, Integer> peerIdToPort = new HashMap<>();
+        for (String peerId : wanted) {
+            PeerManager.PeerInfo peer = peerManager.getPeers().get(peerId);
+            if (peer != null && peer.ip != null && !peer.ip.trim().isEmpty()) {
+                peerIds.add(peerId);
+                peerIdToIp.put(peerId, peer.ip);
+                peerIdToPort.put(peerId, peer.port);
+            }
+        }
+        if (peerIds.isEmpty()) {
+            sendError(exchange, 404, "None of the peers sharing " + file.name + " is reachable");
+            return;
+        }
+
+        downloadManager.startDownload(file.name, hash, file.size, peerIds, peerIdToIp, peerIdToPort);
+        if (downloadManager.getDownload(hash) == null) {
+            sendError(exchange, 500, "Could not start the download of " + file.name);
+            return;
+        }
+        StringBuilder json = new StringBuilder("{");
+        field(json, "hash", hash).append(',');
+        field(json, "name", file.name).append(',');
+        json.append("\"peers\":");
+        stringArray(json, peerIds);
+        send(exchange, 202, json.append('}').toString());
+    }
+
+    private void cancelDownload(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String hash = params.get("hash");
+        if (hash == null || downloadManager.getDownload(hash) == null) {
+            sendError(exchange, 404, "No active download with that hash");
+            return;
+        }
+        downloadManager.cancelDownload(hash);
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private boolean requireMethod(HttpExchange exchange, String method, String allowed) throws IOException {
+        if (method.equals(allowed))
+            return true;
+        exchange.getResponseHeaders().set("Allow", allowed);
+        sendError(exchange, 405, method + " is not supported here");
+        return false;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null)
+            return params;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq >= 0 ? pair.substring(0, eq) : pair, StandardCharsets.UTF_8);
+            String value = eq >= 0 ? URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8) : "";
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    private static void send(HttpExchange exchange, int code, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+        StringBuilder json = new StringBuilder("{");
+        field(json, "error", message);
+        send(exchange, code, json.append('}').toString());
+    }
+
+    private static StringBuilder field(StringBuilder json, String name, String value) {
+        quote(json, name).append(':');
+        return value == null ? json.append("null") : quote(json, value);
+    }
+
+    private static void stringArray(StringBuilder json, Set<String> values) {
+        List<String> sorted = new ArrayList<>(values);
+        sorted.sort(null);
+        json.append('[');
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i > 0)
+                json.append(',');
+            quote(json, sorted.get(i));
+        }
+        json.append(']');
+    }
+
+    private static StringBuilder quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+}
@@ -0,0 +1,688 @@
+package com.network.p2p.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Optional Kademlia-style DHT mapping content hashes (the SHA-256 ids produced by FileManager)
+ * to the peers that provide them. Lookups take O(log n) hops instead of TTL-limited flooding.
+ *
+ * Node ids are SHA-256(peerId), so ids and keys share one 256-bit XOR metric space.
+ * Every node binds its own UDP socket; several nodes can run in one process on loopback.
+ */
+public class DhtNode {
+    private static final Logger logger = Logger.getLogger(DhtNode.class.getName());
+
+    private static final int ID_BITS = 256;
+    private static final int K = 8; // Bucket size and replication factor
+    private static final int ALPHA = 3; // Parallel requests per lookup round
+    private static final int PACKET_SIZE = 1400;
+    private static final long RPC_TIMEOUT_MS = 1000;
+    private static final int MAX_RPC_FAILURES = 3; // Consecutive timeouts before a contact counts as gone (UDP drops packets)
+    private static final long REPUBLISH_MS = 60000;
+    private static final long INITIAL_PUBLISH_DELAY_MS = 5000;
+    private static final int ANNOUNCE_PARALLELISM = 4; // Republish lookups running at once
+    private static final long PROVIDER_TTL_MS = 3 * REPUBLISH_MS;
+    private static final int MAX_PROVIDERS_PER_REPLY = 20;
+
+    private static final byte MAGIC = 0x44; // 'D'
+    private static final byte MSG_PING = 1;
+    private static final byte MSG_PONG = 2;
+    private static final byte MSG_FIND_NODE = 3;
+    private static final byte MSG_NODES = 4;
+    private static final byte MSG_FIND_VALUE = 5;
+    private static final byte MSG_VALUES = 6;
+    private static final byte MSG_STORE = 7;
+    private static final byte MSG_STORE_ACK = 8;
+
+    public static class Contact {
+        public final String peerId;
+        public final BigInteger id;
+        public final InetSocketAddress address;
+        volatile long lastSeen = System.currentTimeMillis();
+        int failures = 0; // Consecutive unanswered RPCs, guarded by buckets
+
+        Contact(String peerId, InetSocketAddress address) {
+            this.peerId = peerId;
+            this.id = idFor(peerId);
+            this.address = address;
+        }
+    }
+
+    // A peer serving a content hash from its FileServer
+    public static class Provider {
+        public final String peerId;
+        public final String ip;
+        public final int port;
+        long expiresAt;
+
+        Provider(String peerId, String ip, int port) {
+            this.peerId = peerId;
+            this.ip = ip;
+            this.port = port;
+        }
+    }
+
+    private static class Message {
+        byte type;
+        long txnId;
+        String senderId;
+        InetSocketAddress from;
+        byte[] key;
+        List<Contact> contacts = new ArrayList<>();
+        List<Provider> providers = new ArrayList<>();
+    }
+
+    private final String peerId;
+    private final BigInteger nodeId;
+    private final DatagramSocket socket;
+    private volatile boolean running = false;
+
+    private final List<LinkedList<Contact>> buckets = new ArrayList<>(); // bucket i: distance in [2^i, 2^(i+1))
+    private final Map<BigInteger, Map<String, Provider>> store = new ConcurrentHashMap<>(); // key -> peerId -> provider
+    private final Map<Long, CompletableFuture<Message>> pendingRpcs = new ConcurrentHashMap<>();
+    private final AtomicLong nextTxnId = new AtomicLong(System.nanoTime());
+
+    private final ExecutorService rpcExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "DhtNode-RPC");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "DhtNode-Maintenance");
+        t.setDaemon(true);
+        return t;
+    });
+    // Republish lookups, off the maintenance thread and a few at a time
+    private final ExecutorService announceExecutor = Executors.newFixedThreadPool(ANNOUNCE_PARALLELISM, r -> {
+        Thread t = new Thread(r, "DhtNode-Announce");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicInteger pendingAnnounces = new AtomicInteger(); // Of the current republish round
+
+    // Hashes this node provides and the FileServer port they are served on
+    private Supplier<Collection<String>> localKeys = Collections::emptyList;
+    private volatile int fileServerPort = 0;
+    private final List<InetSocketAddress> pendingBootstrap = new ArrayList<>();
+
+    public DhtNode(String peerId, InetAddress bindAddress, int port) throws SocketException {
+        this.peerId = peerId;
+        this.nodeId = idFor(peerId);
+        this.socket = new DatagramSocket(new InetSocketAddress(bindAddress, port));
+        for (int i = 0; i < ID_BITS; i++)
+            buckets.add(new LinkedList<>());
+    }
+
+    /**
+     * Creates a node from DHT_PORT (and optional DHT_BOOTSTRAP=host:port,host:port).
+     * Returns null when DHT_PORT is not set, i.e. the DHT is disabled.
+     */
+    public static DhtNode fromEnvironment(String peerId) {
+        String envPort = System.getenv("DHT_PORT");
+        if (envPort == null || envPort.trim().isEmpty())
+            return null;
+        try {
+            DhtNode node = new DhtNode(peerId, null, Integer.parseInt(envPort.trim()));
+            String bootstrap = System.getenv("DHT_BOOTSTRAP");
+            if (bootstrap != null) {
+                for (String hostPort : bootstrap.split(",")) {
+                    int sep = hostPort.lastIndexOf(':');
+                    if (sep > 0) {
+                        node.pendingBootstrap.add(new InetSocketAddress(hostPort.substring(0, sep).trim(),
+                                Integer.parseInt(hostPort.substring(sep + 1).trim())));
+                    }
+                }
+            }
+            return node;
+        } catch (Exception e) {
+            System.err.println("DHT disabled, failed to start on DHT_PORT=" + envPort + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void start() {
+        if (running)
+            return;
+        running = true;
+        Thread listener = new Thread(this::listenLoop, "DhtNode-Listener");
+        listener.setDaemon(true);
+        listener.start();
+        scheduler.scheduleWithFixedDelay(this::republish, INITIAL_PUBLISH_DELAY_MS, REPUBLISH_MS, TimeUnit.MILLISECONDS);
+        logger.info("DHT node " + peerId + " listening on UDP port " + getPort());
+
+        for (InetSocketAddress address : pendingBootstrap) {
+            rpcExecutor.submit(() -> bootstrap(address));
+        }
+    }
+
+    public void stop() {
+        running = false;
+        socket.close();
+        scheduler.shutdownNow();
+        announceExecutor.shutdownNow();
+        rpcExecutor.shutdownNow();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    public String getPeerId() {
+        return peerId;
+    }
+
+    public void setLocalKeys(Supplier<Collection<String>> localKeys, int fileServerPort) {
+        this.localKeys = localKeys;
+        this.fileServerPort = fileServerPort;
+    }
+
+    public int getRoutingTableSize() {
+        int size = 0;
+        synchronized (buckets) {
+            for (LinkedList<Contact> bucket : buckets)
+                size += bucket.size();
+        }
+        return size;
+    }
+
+    // ==================== Public operations ====================
+
+    /** Joins the DHT through a known node: ping it, then look up our own id to fill the buckets. */
+    public boolean bootstrap(InetSocketAddress address) {
+        Message pong = rpc(address, newMessage(MSG_PING));
+        if (pong == null) {
+            System.err.println("DEBUG DHT: Bootstrap node " + address + " did not answer");
+            return false;
+        }
+        lookupNodes(nodeId);
+        System.out.println("DEBUG DHT: Bootstrapped via " + address + ", routing table has " + getRoutingTableSize() + " nodes");
+        return true;
+    }
+
+    /** Adds a node we learned about elsewhere (e.g. a LAN peer); it enters the routing table once it answers. */
+    public void addNode(InetSocketAddress address) {
+        if (running)
+            rpcExecutor.submit(() -> rpc(address, newMessage(MSG_PING)));
+    }
+
+    /** Announces that we serve a content hash on the given FileServer port. */
+    public void announce(String contentHash, int port) {
+        BigInteger key = keyFor(contentHash);
+        Provider self = new Provider(peerId, "", port);
+        List<Contact> closest = lookupNodes(key);
+        int stored = 0;
+        for (Contact contact : closest) {
+            if (sendStore(contact.address, key, self))
+                stored++;
+        }
+        // Keep a local copy too, so we can answer if we are among the closest nodes
+        storeProvider(key, self);
+        System.out.println("DEBUG DHT: Announced " + contentHash.substring(0, Math.min(16, contentHash.length()))
+                + "... on " + stored + " node(s)");
+    }
+
+    /** Iterative FIND_VALUE: the peers currently providing a content hash (may be empty). */
+    public List<Provider> findProviders(String contentHash) {
+        BigInteger key = keyFor(contentHash);
+        Map<String, Provider> found = new LinkedHashMap<>();
+        Map<String, Provider> local = store.get(key);
+        if (local != null) {
+            for (Provider p : local.values()) {
+                if (!p.peerId.equals(peerId) && p.expiresAt > System.currentTimeMillis())
+                    found.put(p.peerId, p);
+            }
+        }
+
+        iterativeLookup(key, true, found);
+        return new ArrayList<>(found.values());
+    }
+
+    // ==================== Lookup ====================
+
+    private List<Contact> lookupNodes(BigInteger target) {
+        return iterativeLookup(target, false, null);
+    }
+
+    /**
+     * Kademlia node lookup: query the ALPHA closest unqueried contacts in parallel, merge their
+     * answers, and stop once the K closest known contacts have all been queried. FIND_VALUE
+     * lookups stop after the first round that turned up providers.
+     */
+    private List<Contact> iterativeLookup(BigInteger target, boolean findValue, Map<String, Provider> providersOut) {
+        TreeMap<BigInteger, Contact> shortlist = new TreeMap<>();
+        for (Contact c : closestContacts(target, K))
+            shortlist.put(c.id.xor(target), c);
+        Set<String> queried = new HashSet<>();
+        Set<String> failed = new HashSet<>();
+
+        while (running) {
+            List<Contact> round = new ArrayList<>();
+            int considered = 0;
+            for (Contact c : shortlist.values()) {
+                if (considered++ >= K)
+                    break;
+                if (!queried.contains(c.peerId) && round.size() < ALPHA)
+                    round.add(c);
+            }
+            if (round.isEmpty())
+                break;
+
+            List<CompletableFuture<Message>> replies = new ArrayList<>();
+            for (Contact c : round) {
+                queried.add(c.peerId);
+                Message request = newMessage(findValue ? MSG_FIND_VALUE : MSG_FIND_NODE);
+                request.key = toBytes(target);
+                replies.add(CompletableFuture.supplyAsync(() -> rpc(c.address, request), rpcExecutor));
+            }
+
+            boolean foundValues = false;
+            for (int i = 0; i < round.size(); i++) {
+                Message reply = replies.get(i).join();
+                if (reply == null) {
+                    failed.add(round.get(i).peerId);
+                    shortlist.remove(round.get(i).id.xor(target));
+                    continue;
+                }
+                for (Contact c : reply.contacts) {
+                    if (!c.peerId.equals(peerId) && !failed.contains(c.peerId))
+                        shortlist.putIfAbsent(c.id.xor(target), c);
+                }
+                if (providersOut != null) {
+                    for (Provider p : reply.providers) {
+                        if (!p.peerId.equals(peerId)) {
+                            providersOut.put(p.peerId, p);
+                            foundValues = true;
+                        }
+                    }
+                }
+            }
+            if (findValue && foundValues)
+                break;
+        }
+
+        List<Contact> result = new ArrayList<>();
+        for (Contact c : shortlist.values()) {
+            if (result.size() >= K)
+                break;
+            if (queried.contains(c.peerId) && !failed.contains(c.peerId))
+                result.add(c);
+        }
+        return result;
+    }
+
+    // ==================== Routing table ====================
+
+    private int bucketIndex(BigInteger id) {
+        BigInteger distance = id.xor(nodeId);
+        return distance.signum() == 0 ? -1 : distance.bitLength() - 1;
+    }
+
+    // Least-recently-seen eviction: a full bucket only takes a new contact if its oldest one is dead
+    private void touchContact(Contact contact) {
+        if (contact.peerId.equals(peerId))
+            return;
+        int index = bucketIndex(contact.id);
+        if (index < 0)
+            return;
+
+        Contact oldest;
+        boolean isNew;
+        synchronized (buckets) {
+            LinkedList<Contact> bucket = buckets.get(index);
+            Contact existing = null;
+            for (Contact c : bucket) {
+                if (c.peerId.equals(contact.peerId)) {
+                    existing = c;
+                    break;
+                }
+            }
+            if (existing != null) {
+                bucket.remove(existing);
+                if (!existing.address.equals(contact.address))
+                    existing = contact; // Peer moved, trust the newest address
+                existing.lastSeen = System.currentTimeMillis();
+                existing.failures = 0;
+                bucket.addLast(existing);
+                return;
+            }
+            isNew = bucket.size() < K;
+            if (isNew) {
+                bucket.addLast(contact);
+                oldest = null;
+            } else {
+                oldest = bucket.getFirst();
+            }
+        }
+
+        if (isNew) {
+            replicateTo(contact);
+            return;
+        }
+        rpcExecutor.submit(() -> {
+            if (rpc(oldest.address, newMessage(MSG_PING)) == null) {
+                synchronized (buckets) {
+                    LinkedList<Contact> bucket = buckets.get(index);
+                    if (bucket.remove(oldest) && bucket.size() < K)
+                        bucket.addLast(contact);
+                }
+                replicateTo(contact);
+            }
+        });
+    }
+
+    // A single lost datagram doesn't make a contact stale; it is dropped after repeated timeouts
+    private void contactFailed(InetSocketAddress address) {
+        synchronized (buckets) {
+            for (LinkedList<Contact> bucket : buckets)
+                bucket.removeIf(c -> c.address.equals(address) && ++c.failures >= MAX_RPC_FAILURES);
+        }
+    }
+
+    private List<Contact> closestContacts(BigInteger target, int count) {
+        List<Contact> all = new ArrayList<>();
+        synchronized (buckets) {
+            for (LinkedList<Contact> bucket : buckets)
+                all.addAll(bucket);
+        }
+        all.sort(Comparator.comparing(c -> c.id.xor(target)));
+        return all.size() > count ? new ArrayList<>(all.subList(0, count)) : all;
+    }
+
+    // ==================== Storage and churn ====================
+
+    private void storeProvider(BigInteger key, Provider provider) {
+        provider.expiresAt = System.currentTimeMillis() + PROVIDER_TTL_MS;
+        store.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(provider.peerId, provider);
+    }
+
+    /**
+     * Churn handling, part 1: a node joined. Hand it the providers for keys it is now closer to
+     * than we are, so lookups that end at it still find them.
+     */
+    private void replicateTo(Contact contact) {
+        if (store.isEmpty())
+            return;
+        rpcExecutor.submit(() -> {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<BigInteger, Map<String, Provider>> entry : store.entrySet()) {
+                BigInteger key = entry.getKey();
+                if (contact.id.xor(key).compareTo(nodeId.xor(key)) >= 0)
+                    continue;
+                for (Provider p : entry.getValue().values()) {
+                    if (p.expiresAt > now)
+                        sendStore(contact.address, key, p);
+                }
+            }
+        });
+    }
+
+    /**
+     * Churn handling, part 2: periodically re-announce our own keys to the current K closest
+     * nodes (replacing nodes that left) and expire providers that stopped republishing. The keys
+     * are spread over the first half of the interval and looked up ANNOUNCE_PARALLELISM at a time,
+     * so a large library neither floods the network at once nor runs into the next round; a round
+     * that is still going when the next one is due is left to finish instead.
+     */
+    private void republish() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Map<String, Provider> providers : store.values())
+                providers.values().removeIf(p -> p.expiresAt <= now);
+            store.values().removeIf(Map::isEmpty);
+
+            int port = fileServerPort;
+            if (port <= 0)
+                return;
+            if (pendingAnnounces.get() > 0) {
+                logger.warning("DHT republish skipped, " + pendingAnnounces.get() + " announce(s) of the last round still pending");
+                return;
+            }
+            List<String> keys = new ArrayList<>(localKeys.get());
+            long spacing = keys.isEmpty() ? 0 : REPUBLISH_MS / 2 / keys.size();
+            pendingAnnounces.set(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                String hash = keys.get(i);
+                scheduler.schedule(() -> announceExecutor.submit(() -> {
+                    try {
+                        announce(hash, port);
+                    } catch (Exception e) {
+                        logger.warning("DHT announce failed: " + e.getMessage());
+                    } finally {
+                        pendingAnnounces.decrementAndGet();
+                    }
+                }), i * spacing, TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception e) {
+            logger.warning("DHT republish failed: " + e.getMessage());
+        }
+    }
+
+    private boolean sendStore(InetSocketAddress target, BigInteger key, Provider provider) {
+        Message store = newMessage(MSG_STORE);
+        store.key = toBytes(key);
+        store.providers.add(provider);
+        return rpc(target, store) != null;
+    }
+
+    // ==================== Networking ====================
+
+    private void listenLoop() {
+        byte[] buffer = new byte[PACKET_SIZE];
+        while (running) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                Message msg = decode(packet);
+                if (msg == null)
+                    continue;
+                touchContact(new Contact(msg.senderId, msg.from));
+
+                CompletableFuture<Message> pending = null;
+                if (msg.type == MSG_PONG || msg.type == MSG_NODES || msg.type == MSG_VALUES || msg.type == MSG_STORE_ACK)
+                    pending = pendingRpcs.remove(msg.txnId);
+                if (pending != null) {
+                    pending.complete(msg);
+                } else {
+                    handleRequest(msg);
+                }
+            } catch (IOException e) {
+                if (running)
+                    logger.warning("DHT receive error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleRequest(Message request) {
+        Message reply = new Message();
+        reply.txnId = request.txnId;
+        switch (request.type) {
+            case MSG_PING:
+                reply.type = MSG_PONG;
+                break;
+            case MSG_FIND_NODE:
+                reply.type = MSG_NODES;
+                reply.contacts = closestContacts(new BigInteger(1, request.key), K);
+                break;
+            case MSG_FIND_VALUE:
+                reply.type = MSG_VALUES;
+                BigInteger key = new BigInteger(1, request.key);
+                Map<String, Provider> providers = store.get(key);
+                long now = System.currentTimeMillis();
+                if (providers != null) {
+                    for (Provider p : providers.values()) {
+                        if (p.expiresAt > now && reply.providers.size() < MAX_PROVIDERS_PER_REPLY)
+                            reply.providers.add(p);
+                    }
+                }
+                reply.contacts = closestContacts(key, K);
+                break;
+            case MSG_STORE:
+                reply.type = MSG_STORE_ACK;
+                for (Provider p : request.providers)
+                    storeProvider(new BigInteger(1, request.key), p);
+                break;
+            default:
+                return;
+        }
+        send(request.from, reply);
+    }
+
+    private Message newMessage(byte type) {
+        Message msg = new Message();
+        msg.type = type;
+        msg.txnId = nextTxnId.incrementAndGet();
+        return msg;
+    }
+
+    // Sends a request and waits for the matching reply; null on timeout (counted against the contact)
+    private Message rpc(InetSocketAddress target, Message request) {
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        pendingRpcs.put(request.txnId, future);
+        try {
+            send(target, request);
+            return future.get(RPC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            contactFailed(target);
+            return null;
+        } finally {
+            pendingRpcs.remove(request.txnId);
+        }
+    }
+
+    // [Magic(1)][Type(1)][TxnId(8)][SenderId][Key?(32)][ProviderCount(1)]{[PeerId][Ip][Port(4)]}[ContactCount(1)]{[PeerId][Ip][Port(4)]}
+    private void send(InetSocketAddress target, Message msg) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(MAGIC);
+            out.writeByte(msg.type);
+            out.writeLong(msg.txnId);
+            out.writeUTF(peerId);
+            out.writeBoolean(msg.key != null);
+            if (msg.key != null)
+                out.write(msg.key);
+            out.writeByte(msg.providers.size());
+            for (Provider p : msg.providers) {
+                out.writeUTF(p.peerId);
+                out.writeUTF(p.ip);
+                out.writeInt(p.port);
+            }
+            out.writeByte(msg.contacts.size());
+            for (Contact c : msg.contacts) {
+                out.writeUTF(c.peerId);
+                out.writeUTF(c.address.getAddress().getHostAddress());
+                out.writeInt(c.address.getPort());
+            }
+            byte[] data = bytes.toByteArray();
+            socket.send(new DatagramPacket(data, data.length, target));
+        } catch (IOException e) {
+            if (running)
+                logger.warning("DHT send to " + target + " failed: " + e.getMessage());
+        }
+    }
+
+    private Message decode(DatagramPacket packet) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+            if (in.readByte() != MAGIC)
+                return null;
+            Message msg = new Message();
+            msg.type = in.readByte();
+            msg.txnId = in.readLong();
+            msg.senderId = in.readUTF();
+            msg.from = (InetSocketAddress) packet.getSocketAddress();
+            if (in.readBoolean()) {
+                msg.key = new byte[ID_BITS / 8];
+                in.readFully(msg.key);
+            }
+            int providerCount = in.readUnsignedByte();
+            for (int i = 0; i < providerCount; i++) {
+                String id = in.readUTF();
+                String ip = in.readUTF();
+                // An empty IP means "the sender itself": use the address the packet came from
+                if (ip.isEmpty())
+                    ip = packet.getAddress().getHostAddress();
+                msg.providers.add(new Provider(id, ip, in.readInt()));
+            }
+            int contactCount = in.readUnsignedByte();
+            for (int i = 0; i < contactCount; i++) {
+                String id = in.readUTF();
+                String ip = in.readUTF();
+                int port = in.readInt();
+                msg.contacts.add(new Contact(id, new InetSocketAddress(ip, port)));
+            }
+            return msg;
+        } catch (IOException e) {
+            return null; // Malformed packet
+        }
+    }
+
+    // ==================== Ids ====================
+
+    private static BigInteger idFor(String peerId) {
+        return new BigInteger(1, sha256(peerId.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Content hashes are already 256-bit hex SHA-256 values; anything else is hashed first
+    private static BigInteger keyFor(String contentHash) {
+        if (contentHash.length() == ID_BITS / 4) {
+            try {
+                return new BigInteger(contentHash, 16);
+            } catch (NumberFormatException e) {
+                // Fall through
+            }
+        }
+        return new BigInteger(1, sha256(contentHash.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] toBytes(BigInteger id) {
+        byte[] raw = id.toByteArray();
+        byte[] fixed = new byte[ID_BITS / 8];
+        int copy = Math.min(raw.length, fixed.length);
+        System.arraycopy(raw, raw.length - copy, fixed, fixed.length - copy, copy);
+        return fixed;
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
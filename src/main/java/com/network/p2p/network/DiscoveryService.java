@@ -18,22 +18,53 @@ public class DiscoveryService {
     private static final Logger logger = Logger.getLogger(DiscoveryService.class.getName());
     private static final int DISCOVERY_PORT = 50000;
     private static final int DEFAULT_TTL = 3;
-    private static final int PACKET_SIZE = 1024;
+    private static final int PACKET_SIZE = Protocol.MAX_PACKET_SIZE;
+    // HELLO interval grows with the swarm so each peer receives at most ~2 announcements/s in total
+    private static final long MIN_ANNOUNCE_INTERVAL_MS = 5000;
+    private static final long MAX_ANNOUNCE_INTERVAL_MS = 60000;
+    private static final long ANNOUNCE_MS_PER_PEER = 500;
+    private static final double ANNOUNCE_JITTER = 0.25; // +/- 25% to avoid synchronized bursts
 
     private final String peerId;
     private DatagramSocket socket;
     private volatile boolean running = false;
     private final ExecutorService executor = Executors.newCachedThreadPool();
     private int fileServerPort = 50001; // Default, will be updated
+    private long announceSeq = 0;
 
     // Cache to detect duplicates for flooding control: MessageHash -> Timestamp
     private final ConcurrentHashMap<String, Long> seenMessages = new ConcurrentHashMap<>();
 
+    // Reverse path for query responses: QueryId -> previous hop the query came from
+    private final ConcurrentHashMap<String, QueryRoute> queryRoutes = new ConcurrentHashMap<>();
+    // Queries we sent ourselves: QueryId -> Timestamp
+    private final ConcurrentHashMap<String, Long> originatedQueries = new ConcurrentHashMap<>();
+    private static final long QUERY_ROUTE_TIMEOUT_MS = 30000;
+
+    private static class QueryRoute {
+        final InetSocketAddress previousHop;
+        final long createdAt = System.currentTimeMillis();
+
+        QueryRoute(InetSocketAddress previousHop) {
+            this.previousHop = previousHop;
+        }
+    }
+
     // Callback for when a peer is found or message received
     public interface PeerDiscoveryListener {
         void onPeerFound(String peerId, String ipAddress, int port);
 
         void onMessageReceived(byte type, String content, String ip, int port);
+
+        // HELLO from a peer, with the interval it announces at (used for liveness expiry)
+        default void onPeerAnnounce(String peerId, String ipAddress, int port, long announceIntervalMs) {
+            onPeerFound(peerId, ipAddress, port);
+        }
+
+        // Swarm size as seen by the listener, used to scale the announce interval
+        default int getKnownPeerCount() {
+            return 0;
+        }
     }
 
     private PeerDiscoveryListener listener;
@@ -101,11 +132,22 @@ public class DiscoveryService {
         executor.shutdownNow();
     }
 
+    /**
+     * Announce interval for the current swarm size: MIN_ANNOUNCE_INTERVAL_MS for small swarms,
+     * growing linearly with the number of peers up to MAX_ANNOUNCE_INTERVAL_MS.
+     */
+    public long getAnnounceInterval() {
+        int peers = listener != null ? listener.getKnownPeerCount() : 0;
+        return Math.max(MIN_ANNOUNCE_INTERVAL_MS, Math.min(MAX_ANNOUNCE_INTERVAL_MS, peers * ANNOUNCE_MS_PER_PEER));
+    }
+
     private void broadcastLoop() {
         while (running) {
             try {
-                sendDiscoveryPacket(DEFAULT_TTL);
-                Thread.sleep(5000); // Announce every 5 seconds
+                long interval = getAnnounceInterval();
+                sendDiscoveryPacket(DEFAULT_TTL, interval);
+                double jitter = 1.0 + ANNOUNCE_JITTER * (2 * Math.random() - 1);
+                Thread.sleep((long) (interval * jitter));
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 break;
@@ -130,10 +172,12 @@ public class DiscoveryService {
     private void cleanupLoop() {
         while (running) {
             try {
-                Thread.sleep(60000); // Run every minute
+                Thread.sleep(10000); // Run every 10 seconds, matching the dedup window
                 long now = System.currentTimeMillis();
                 seenMessages.entrySet().removeIf(entry -> (now - entry.getValue()) > 10000); // Remove entries older
                                                                                              // than 10s
+                queryRoutes.entrySet().removeIf(entry -> (now - entry.getValue().createdAt) > QUERY_ROUTE_TIMEOUT_MS);
+                originatedQueries.entrySet().removeIf(entry -> (now - entry.getValue()) > QUERY_ROUTE_TIMEOUT_MS);
             } catch (InterruptedException e) {
                 break;
             }
@@ -183,18 +227,30 @@ public class DiscoveryService {
                 break;
             case Protocol.TYPE_QUERY_FILES:
                 logger.info("Received QUERY: " + content);
+                // Remember where the query came from so responses can retrace its path
+                String queryId = extractQueryId(type, content);
+                if (queryId != null) {
+                    queryRoutes.putIfAbsent(queryId, new QueryRoute((InetSocketAddress) packet.getSocketAddress()));
+                }
                 handleQuery(content, packet.getAddress(), packet.getPort());
                 break;
             case Protocol.TYPE_RESPONSE_FILES:
                 logger.info("Received RESPONSE: " + content);
-                handleResponse(content, packet.getAddress().getHostAddress(), packet.getPort());
+                // First hop back: tag the response with the responder's address
+                routeResponse(content, packet.getAddress().getHostAddress(), packet.getPort());
+                break;
+            case Protocol.TYPE_RELAYED_RESPONSE:
+                logger.info("Received RELAYED RESPONSE: " + content);
+                int sep = content.indexOf('|');
+                if (sep > 0) {
+                    routeResponse(content.substring(sep + 1), content.substring(0, sep), packet.getPort());
+                }
                 break;
         }
 
         // 4. Forwarding (Limited-Scope Flooding)
-        // We forward HELLO and QUERY, but typically RESPONSE is unicast (direct).
-        // For simplicity in this project, we might flood queries but unicast responses.
-        if (ttl > 1 && type != Protocol.TYPE_RESPONSE_FILES) {
+        // We flood HELLO and QUERY; responses travel back unicast along the reverse path.
+        if (ttl > 1 && type != Protocol.TYPE_RESPONSE_FILES && type != Protocol.TYPE_RELAYED_RESPONSE) {
             data[0] = (byte) (ttl - 1);
             forwardPacket(data, length);
         }
@@ -206,7 +262,7 @@ public class DiscoveryService {
         System.out.println("  - ip: " + ip);
         System.out.println("  - port: " + port);
         
-        // CONTENT Format: ID:<peerId>:PORT:<fileServerPort>
+        // CONTENT Format: ID:<peerId>:PORT:<fileServerPort>[:SEQ:<n>:INT:<announceIntervalMs>]
         String[] parts = content.split(":");
         System.out.println("  - parts: " + java.util.Arrays.toString(parts));
         
@@ -226,8 +282,17 @@ public class DiscoveryService {
             System.out.println("  - ip: " + ip);
             System.out.println("  - fileServerPort: " + fileServerPort);
             
+            long announceInterval = MIN_ANNOUNCE_INTERVAL_MS; // Older peers announce every 5 seconds
+            if (parts.length >= 8 && parts[6].equals("INT")) {
+                try {
+                    announceInterval = Long.parseLong(parts[7]);
+                } catch (NumberFormatException e) {
+                    System.err.println("DEBUG: Failed to parse announce interval from HELLO: " + content);
+                }
+            }
+
             if (listener != null) {
-                listener.onPeerFound(remoteId, ip, fileServerPort);
+                listener.onPeerAnnounce(remoteId, ip, fileServerPort, announceInterval);
             } else {
                 System.err.println("DEBUG ERROR: listener is NULL!");
             }
@@ -266,6 +331,65 @@ public class DiscoveryService {
         }
     }
 
+    /**
+     * Delivers a response to us if we asked the query, otherwise relays it one hop back
+     * towards the originator. Responses without a known route (older peers) are delivered locally.
+     */
+    private void routeResponse(String content, String responderIp, int port) {
+        String queryId = extractQueryId(Protocol.TYPE_RESPONSE_FILES, content);
+        if (queryId == null || originatedQueries.containsKey(queryId)) {
+            handleResponse(content, responderIp, port);
+            return;
+        }
+
+        QueryRoute route = queryRoutes.get(queryId);
+        if (route == null) {
+            handleResponse(content, responderIp, port);
+            return;
+        }
+        System.out.println("DEBUG DiscoveryService: Relaying response for query " + queryId + " to " + route.previousHop);
+        sendUnicast(Protocol.TYPE_RELAYED_RESPONSE, responderIp + "|" + content, route.previousHop);
+    }
+
+    // QUERY: ID:<sender>:Q:<qid>:<query>   RESPONSE: ID:<responder>:QUERY_HITS:<qid>:...
+    private static String extractQueryId(byte type, String content) {
+        String[] parts = content.split(":", 5);
+        if (parts.length < 5 || !parts[0].equals("ID"))
+            return null;
+        if (type == Protocol.TYPE_QUERY_FILES && parts[2].equals("Q"))
+            return parts[3];
+        if (type == Protocol.TYPE_RESPONSE_FILES && parts[2].equals("QUERY_HITS"))
+            return parts[3];
+        return null;
+    }
+
+    /**
+     * Sends a query response back to the peer the query reached us from (reverse-path forwarding).
+     * Falls back to a 1-hop broadcast when the query's path is unknown.
+     */
+    public void sendResponse(String queryId, String content) {
+        QueryRoute route = queryId != null ? queryRoutes.get(queryId) : null;
+        if (route == null) {
+            broadcastPacket(Protocol.TYPE_RESPONSE_FILES, content, 1);
+            return;
+        }
+        sendUnicast(Protocol.TYPE_RESPONSE_FILES, content, route.previousHop);
+    }
+
+    private void sendUnicast(byte type, String content, InetSocketAddress target) {
+        try {
+            byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+            byte[] data = new byte[2 + contentBytes.length];
+            data[0] = 1; // TTL, responses are never flooded
+            data[1] = type;
+            System.arraycopy(contentBytes, 0, data, 2, contentBytes.length);
+            socket.send(new DatagramPacket(data, data.length, target));
+            logger.info("Unicast packet to " + target + " - Type: " + type);
+        } catch (Exception e) {
+            logger.warning("Failed to send unicast to " + target + ": " + e.getMessage());
+        }
+    }
+
     private void forwardPacket(byte[] data, int length) {
         try {
             InetAddress broadcastAddr = InetAddress.getByName(broadcastAddress);
@@ -277,8 +401,9 @@ public class DiscoveryService {
         }
     }
 
-    private void sendDiscoveryPacket(int ttl) {
-        String msg = "ID:" + peerId + ":PORT:" + fileServerPort;
+    private void sendDiscoveryPacket(int ttl, long intervalMs) {
+        // SEQ makes every announcement unique, so duplicate suppression doesn't swallow the next one
+        String msg = "ID:" + peerId + ":PORT:" + fileServerPort + ":SEQ:" + (announceSeq++) + ":INT:" + intervalMs;
         broadcastPacket(Protocol.TYPE_HELLO, msg, ttl);
     }
 
@@ -299,9 +424,15 @@ public class DiscoveryService {
         }
     }
 
-    public String search(String fileName) {
-        // Implement search packet sending if needed
-        return null;
+    /**
+     * Floods a search query and returns its query id. Responses to it are unicast back
+     * along the path the query took.
+     */
+    public String search(String query, int ttl) {
+        String queryId = UUID.randomUUID().toString().substring(0, 8);
+        originatedQueries.put(queryId, System.currentTimeMillis());
+        broadcastPacket(Protocol.TYPE_QUERY_FILES, "ID:" + peerId + ":Q:" + queryId + ":" + query, ttl);
+        return queryId;
     }
 
     public String getPeerId() {
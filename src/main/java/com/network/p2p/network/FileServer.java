@@ -1,34 +1,138 @@
 package com.network.p2p.network;
 
+import com.network.p2p.managers.ContentHash;
+import com.network.p2p.managers.DownloadManager;
+import com.network.p2p.managers.FileCatalog;
 import com.network.p2p.managers.FileManager;
+import com.network.p2p.managers.PeerManager;
+import com.network.p2p.managers.PieceStorage;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class FileServer {
 
     private static final int BASE_PORT = 50001; // Base TCP Port for File Transfer
     private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int DEFAULT_CACHE_MB = 64;
+    private static final int MAX_SWARM_PEERS = 10; // Peers returned per have-bitmap response
+    private static final long SWARM_MEMBER_TIMEOUT_MS = 2 * 60 * 1000;
+    private static final int MAX_OPEN_STORAGES = 64; // Shared files kept open for serving
+    private static final int SESSION_IDLE_TIMEOUT_MS = 60000;
 
     private final FileManager fileManager;
+    private final ChunkCache chunkCache;
+    // Shared files are read through PieceStorage (PIECE_STORAGE=mmap maps them, anything else uses file channels)
+    private final PieceStorage.Type serveStorageType =
+            PieceStorage.Type.fromEnvironment() == PieceStorage.Type.MMAP ? PieceStorage.Type.MMAP : PieceStorage.Type.FILE;
+    // Open storages are leased by the requests reading them; one dropped from the map is closed by its last reader
+    private static class OpenStorage {
+        final PieceStorage storage;
+        int leases = 0;
+        boolean retired = false;
+
+        OpenStorage(PieceStorage storage) {
+            this.storage = storage;
+        }
+    }
+    private final Map<String, OpenStorage> openStorages = new LinkedHashMap<String, OpenStorage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, OpenStorage> eldest) {
+            if (size() <= MAX_OPEN_STORAGES)
+                return false;
+            retire(eldest.getValue());
+            return true;
+        }
+    };
+    private static final int MAX_CACHED_PIECE_HASHES = 16; // Files whose piece digests are kept
+    // Piece digests of shared files, asked for by downloaders whose copy failed verification
+    private final Map<String, byte[][]> pieceHashCache = new LinkedHashMap<String, byte[][]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[][]> eldest) {
+            return size() > MAX_CACHED_PIECE_HASHES;
+        }
+    };
+    private DownloadManager downloadManager; // Lets downloading peers seed the chunks they already hold
+    // Upload slots for session clients, null when UPLOAD_SLOTS=0 (everyone is served)
+    private final UploadChoker choker;
+    private PeerManager peerManager; // Answers peer-exchange (PEX) gossip
+
+    // Peers that asked us about a file (hash -> peerId -> member), handed out so downloaders find each other
+    private final Map<String, Map<String, SwarmMember>> swarms = new ConcurrentHashMap<>();
+
+    private static class SwarmMember {
+        final String peerId;
+        final String ip;
+        final int port;
+        volatile long lastSeen;
+
+        SwarmMember(String peerId, String ip, int port) {
+            this.peerId = peerId;
+            this.ip = ip;
+            this.port = port;
+            this.lastSeen = System.currentTimeMillis();
+        }
+    }
     private final ExecutorService executor = Executors.newCachedThreadPool();
+    // Sends chunk data in weighted fair order across peers and files, under the optional total cap
+    private final UploadScheduler uploadScheduler = UploadScheduler.fromEnvironment();
     private boolean running = false;
     private int actualPort = 0; // The port we actually bound to
 
     public FileServer(FileManager fileManager) {
         this.fileManager = fileManager;
+
+        // Off-heap hot chunk cache size, overridable with CHUNK_CACHE_MB (0 disables it)
+        long cacheMb = DEFAULT_CACHE_MB;
+        String envCache = System.getenv("CHUNK_CACHE_MB");
+        if (envCache != null && !envCache.trim().isEmpty()) {
+            try {
+                cacheMb = Long.parseLong(envCache.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("DEBUG FileServer: Invalid CHUNK_CACHE_MB value: " + envCache + ", using " + DEFAULT_CACHE_MB);
+            }
+        }
+        this.chunkCache = new ChunkCache(cacheMb * 1024 * 1024, CHUNK_SIZE);
+        // Free the slabs and digests of files that are no longer shared instead of waiting for eviction
+        fileManager.setHashRetiredListener(hash -> {
+            chunkCache.invalidate(hash);
+            synchronized (pieceHashCache) {
+                pieceHashCache.remove(hash);
+            }
+            synchronized (openStorages) {
+                OpenStorage open = openStorages.remove(hash);
+                if (open != null)
+                    retire(open);
+            }
+        });
+
+        int uploadSlots = UploadChoker.slotsFromEnvironment();
+        this.choker = uploadSlots > 0 ? new UploadChoker(uploadSlots, peerId -> {
+            DownloadManager dm = downloadManager;
+            return dm != null ? dm.getBytesReceivedFrom(peerId) : 0;
+        }) : null;
     }
 
     public void start() {
         if (running)
             return;
         running = true;
+        if (choker != null)
+            choker.start();
         executor.submit(this::serverLoop);
     }
     
@@ -36,9 +140,24 @@ public class FileServer {
         return actualPort;
     }
 
+    public void setDownloadManager(DownloadManager downloadManager) {
+        this.downloadManager = downloadManager;
+    }
+
+    public void setPeerManager(PeerManager peerManager) {
+        this.peerManager = peerManager;
+    }
+
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
     public void stop() {
         running = false;
+        if (choker != null)
+            choker.stop();
         executor.shutdownNow();
+        uploadScheduler.stop();
     }
 
     private void serverLoop() {
@@ -103,15 +222,53 @@ public class FileServer {
                 DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
 
             // Protocol: 
-            // - Request Type (4 bytes): 0 = CHUNK_REQUEST, 1 = LIST_FILES
+            // - Request Type (4 bytes): 0 = CHUNK_REQUEST, 1 = LIST_FILES, 2 = HAVE_BITMAP, 3 = HAVE
             // - For CHUNK_REQUEST: [HashLen(4)][HashBytes][ChunkIndex(4)]
             // - For LIST_FILES: no additional data
+            // - For HAVE_BITMAP: [Hash][PeerId][ListenPort(4)]
+            // - For HAVE: [Hash][PeerId][ListenPort(4)][ChunkIndex(4)]
+            // - For PEX: [PeerId][ListenPort(4)][Count(4)]{[PeerId][Ip][Port(4)][AgeMs(8)]}
+            // - For SESSION: [Version(1)], then frames until the client disconnects (see Protocol)
+            // - For CATALOG: [Epoch(8)][SinceVersion(8)][AfterHash][MaxEntries(4)], repeatable on one connection
+            // - For PIECE_HASHES: [Hash]
             
             int requestType = in.readInt();
             
             System.out.println("🔍 DEBUG FileServer: Received request type = " + requestType);
+
+            if (requestType == Protocol.REQUEST_HAVE_BITMAP) {
+                handleHaveBitmap(in, out, socket.getInetAddress().getHostAddress());
+                return;
+            }
+
+            if (requestType == Protocol.REQUEST_HAVE) {
+                handleHave(in, out, socket.getInetAddress().getHostAddress());
+                return;
+            }
+
+            if (requestType == Protocol.REQUEST_PEX) {
+                if (peerManager != null) {
+                    peerManager.handlePexRequest(in, out, socket.getInetAddress().getHostAddress());
+                }
+                return;
+            }
             
-            if (requestType == 1) {
+            if (requestType == Protocol.REQUEST_SESSION) {
+                handleSession(socket, in, out);
+                return;
+            }
+
+            if (requestType == Protocol.REQUEST_CATALOG) {
+                handleCatalog(in, out);
+                return;
+            }
+
+            if (requestType == Protocol.REQUEST_PIECE_HASHES) {
+                handlePieceHashes(in, out);
+                return;
+            }
+
+            if (requestType == Protocol.REQUEST_LIST_FILES) {
                 // LIST_FILES request
                 System.out.println("📋 Client requested file list");
                 java.util.List<FileManager.SharedFile> files = fileManager.getFileList();
@@ -147,40 +304,440 @@ public class FileServer {
 
             System.out.println("Client requested chunk " + chunkIndex + " for " + hash);
 
-            FileManager.SharedFile file = fileManager.getFileByHash(hash);
-            if (file != null) {
-                System.out.println("File found: " + file.name);
-                // Send Chunk
-                // 1. Seek
-                try (FileInputStream fis = new FileInputStream(file.fileHandle)) {
-                    long offset = (long) chunkIndex * CHUNK_SIZE;
-                    if (offset < file.size) {
-                        fis.skip(offset);
-                        byte[] buffer = new byte[CHUNK_SIZE];
-                        int bytesRead = fis.read(buffer);
-
-                        // Response: [Status(1=OK)][DataLen(4)][Data]
-                        out.writeByte(1); // OK
-                        out.writeInt(bytesRead);
-                        out.write(buffer, 0, bytesRead);
-                        System.out.println("Sent chunk " + chunkIndex + " (" + bytesRead + " bytes)");
-                    } else {
-                        // Offset out of bounds
-                        System.err.println("Offset out of bounds: " + offset + " >= " + file.size);
-                        out.writeByte(0); // Error
-                    }
+            // One-shot requests compete for the same upload slots as sessions, counted by IP
+            String peerKey = "ip:" + socket.getInetAddress().getHostAddress();
+            if (choker != null && choker.oneShotRequest(peerKey)) {
+                out.writeByte(Protocol.DATA_CHOKED); // Refused for now, ask again later
+                out.flush();
+                return;
+            }
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int bytesRead = loadChunk(hash, chunkIndex, buffer);
+            if (bytesRead >= 0) {
+                // Response: [Status(1=OK)][DataLen(4)][Data], sent once the upload scheduler gives us a turn
+                UploadScheduler.Turn turn = uploadScheduler.acquire(peerKey, hash, bytesRead, () -> closeQuietly(socket));
+                int sent = 0;
+                try {
+                    out.writeByte(1); // OK
+                    out.writeInt(bytesRead);
+                    out.write(buffer, 0, bytesRead);
+                    out.flush();
+                    sent = bytesRead;
+                } finally {
+                    uploadScheduler.done(turn, sent);
                 }
+                if (choker != null)
+                    choker.onUploaded(peerKey, bytesRead);
+                System.out.println("Sent chunk " + chunkIndex + " (" + bytesRead + " bytes) - cache " + chunkCache.getStats());
             } else {
-                System.err.println("File NOT FOUND for hash: " + hash);
-                System.err.println("Available files in FileManager:");
-                for (FileManager.SharedFile sf : fileManager.getFileList()) {
-                    System.err.println("  - " + sf.name + " [" + sf.hash + "]");
-                }
-                out.writeByte(0); // Error (File not found)
+                out.writeByte(0); // Error (file or chunk not held)
             }
 
         } catch (IOException e) {
             // e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads a chunk we can serve: from the cache or disk for shared files, or from the completed
+     * part of a download in progress (partial seeding).
+     * @return number of bytes read, or -1 if we don't hold this chunk
+     */
+    private int loadChunk(String hash, int chunkIndex, byte[] buffer) throws IOException {
+        FileManager.SharedFile file = fileManager.getFileByHash(hash);
+        if (file != null) {
+            long offset = (long) chunkIndex * CHUNK_SIZE;
+            if (chunkIndex < 0 || offset >= file.size) {
+                System.err.println("Offset out of bounds: " + offset + " >= " + file.size);
+                return -1;
+            }
+            int bytesRead = chunkCache.get(hash, chunkIndex, buffer);
+            if (bytesRead < 0) {
+                bytesRead = readChunk(file, offset, buffer);
+                chunkCache.put(hash, chunkIndex, buffer, bytesRead);
+            }
+            return bytesRead;
+        }
+        if (downloadManager != null && downloadManager.getDownload(hash) != null) {
+            int bytesRead = downloadManager.readCompletedChunk(hash, chunkIndex, buffer);
+            if (bytesRead < 0)
+                System.err.println("Chunk " + chunkIndex + " not downloaded yet for " + hash);
+            return bytesRead;
+        }
+        System.err.println("File NOT FOUND for hash: " + hash);
+        return -1;
+    }
+
+    /**
+     * Framed transfer session: requests are read here and answered in order by the session's own
+     * writer thread, each when the upload scheduler gives it a turn, so a client that stops reading
+     * only ever blocks its own session. A CANCEL frame drops a request that hasn't been sent yet.
+     * While the client holds no upload slot (UploadChoker) its requests are refused; version 2
+     * clients identify themselves and are told when that changes, version 1 clients count by IP.
+     */
+    private void handleSession(Socket socket, DataInputStream in, DataOutputStream rawOut) throws IOException {
+        byte clientVersion = in.readByte();
+        byte version = (byte) Math.min(clientVersion, Protocol.SESSION_VERSION);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(rawOut));
+        out.writeByte(version);
+        out.flush();
+        if (clientVersion < 1)
+            return;
+        socket.setSoTimeout(SESSION_IDLE_TIMEOUT_MS); // Clients send keepalives well within this
+
+        String remote = socket.getInetAddress().getHostAddress();
+        String clientPeerId = version >= 2 ? Protocol.readString(in) : "";
+        String peerKey = clientPeerId.isEmpty() ? "ip:" + remote : clientPeerId;
+        UploadChoker.ChokeListener chokeListener = choked -> {
+            if (version < 2)
+                return; // Can't be told, its requests just fail while choked
+            try {
+                synchronized (out) {
+                    writeFrameHeader(out, choked ? Protocol.FRAME_CHOKE : Protocol.FRAME_UNCHOKE, 0, 0);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Connection is gone; the reader loop ends the session
+            }
+        };
+        if (choker != null)
+            choker.register(peerKey, chokeListener);
+
+        Map<Integer, AtomicBoolean> inFlight = new ConcurrentHashMap<>(); // Tag -> cancelled
+        ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "FileServer-Session-" + remote);
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            while (running) {
+                byte frameType = in.readByte();
+                int tag = in.readInt();
+                int length = in.readInt();
+                if (length < 0 || length > Protocol.MAX_FRAME_PAYLOAD)
+                    throw new IOException("Invalid frame length: " + length);
+
+                if (frameType == Protocol.FRAME_REQUEST) {
+                    String hash = Protocol.readString(in);
+                    int chunkIndex = in.readInt();
+                    int offset = in.readInt();
+                    int requested = in.readInt();
+                    AtomicBoolean cancelled = new AtomicBoolean(false);
+                    inFlight.put(tag, cancelled);
+                    writer.execute(() -> serveFrame(socket, out, version, peerKey, inFlight, tag, cancelled, hash, chunkIndex, offset, requested));
+                } else if (frameType == Protocol.FRAME_CANCEL) {
+                    AtomicBoolean cancelled = inFlight.remove(tag);
+                    if (cancelled != null)
+                        cancelled.set(true);
+                } else if (frameType == Protocol.FRAME_KEEPALIVE) {
+                    synchronized (out) {
+                        writeFrameHeader(out, Protocol.FRAME_KEEPALIVE, 0, 0);
+                        out.flush();
+                    }
+                } else {
+                    in.readFully(new byte[length]); // Unknown frame, skip
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("Transfer session with " + remote + " idle, closing");
+        } catch (EOFException e) {
+            // Client closed the session
+        } finally {
+            if (choker != null)
+                choker.unregister(peerKey, chokeListener);
+            for (AtomicBoolean cancelled : inFlight.values())
+                cancelled.set(true);
+            writer.shutdownNow();
+        }
+    }
+
+    // Answers one session request on the session's writer thread
+    private void serveFrame(Socket socket, DataOutputStream out, byte version, String peerKey, Map<Integer, AtomicBoolean> inFlight,
+                            int tag, AtomicBoolean cancelled, String hash, int chunkIndex, int offset, int requested) {
+        try {
+            if (cancelled.get())
+                return;
+            if (choker != null && choker.isChoked(peerKey)) {
+                synchronized (out) {
+                    if (inFlight.remove(tag) == null || cancelled.get())
+                        return;
+                    writeFrameHeader(out, Protocol.FRAME_DATA, tag, 1);
+                    out.writeByte(version >= 2 ? Protocol.DATA_CHOKED : 0);
+                    out.flush();
+                }
+                return;
+            }
+            UploadScheduler.Turn turn = uploadScheduler.acquire(peerKey, hash, Math.max(1, Math.min(requested, CHUNK_SIZE)),
+                    () -> closeQuietly(socket));
+            int sent = 0;
+            try {
+                sent = sendFrameData(out, inFlight, tag, cancelled, hash, chunkIndex, offset, requested);
+            } finally {
+                uploadScheduler.done(turn, sent);
+            }
+            if (sent > 0 && choker != null)
+                choker.onUploaded(peerKey, sent);
+        } catch (IOException e) {
+            // Connection is gone; the reader loop ends the session
+        } catch (InterruptedException e) {
+            // Session is closing
+        }
+    }
+
+    // Writes the DATA frame for a request; returns the payload bytes sent (what the upload cap is charged)
+    private int sendFrameData(DataOutputStream out, Map<Integer, AtomicBoolean> inFlight, int tag, AtomicBoolean cancelled,
+                              String hash, int chunkIndex, int offset, int requested) throws IOException {
+        if (cancelled.get())
+            return 0; // Cancelled while waiting for the turn
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int bytesRead = loadChunk(hash, chunkIndex, buffer);
+        int start = Math.max(0, offset);
+        int length = bytesRead < 0 ? 0 : Math.max(0, Math.min(requested, bytesRead - start));
+        boolean ok = bytesRead >= 0 && start < bytesRead;
+
+        synchronized (out) {
+            // Checked under the write lock: a cancel that arrived while reading still wins
+            if (inFlight.remove(tag) == null || cancelled.get())
+                return 0;
+            writeFrameHeader(out, Protocol.FRAME_DATA, tag, 1 + (ok ? length : 0));
+            out.writeByte(ok ? Protocol.DATA_OK : 0);
+            if (ok)
+                out.write(buffer, start, length);
+            out.flush();
+        }
+        return ok ? length : 0;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private static void writeFrameHeader(DataOutputStream out, byte frameType, int tag, int payloadLength) throws IOException {
+        out.writeByte(frameType);
+        out.writeInt(tag);
+        out.writeInt(payloadLength);
+    }
+
+    private void handleHaveBitmap(DataInputStream in, DataOutputStream out, String remoteIp) throws IOException {
+        String hash = Protocol.readString(in);
+        String remotePeerId = Protocol.readString(in);
+        int remotePort = in.readInt();
+
+        // Which chunks can we serve? Everything for shared files, completed chunks for active downloads
+        BitSet haves = null;
+        int totalChunks = 0;
+        FileManager.SharedFile file = fileManager.getFileByHash(hash);
+        if (file != null) {
+            totalChunks = (int) Math.ceil(file.size / (double) CHUNK_SIZE);
+            haves = new BitSet(totalChunks);
+            haves.set(0, totalChunks);
+        } else if (downloadManager != null) {
+            DownloadManager.ActiveDownload download = downloadManager.getDownload(hash);
+            if (download != null) {
+                totalChunks = download.totalChunks;
+                haves = downloadManager.getCompletedChunks(hash);
+            }
+        }
+
+        if (haves == null) {
+            out.writeByte(0); // Error (file not known here)
+            out.flush();
+            return;
+        }
+
+        List<SwarmMember> others = swarmSample(hash, remotePeerId);
+        registerSwarmMember(hash, remotePeerId, remoteIp, remotePort);
+
+        // Response: [Status(1)][TotalChunks(4)][BitmapLen(4)][Bitmap][PeerCount(4)]{[PeerId][Ip][Port(4)]}
+        byte[] bitmap = haves.toByteArray();
+        out.writeByte(1);
+        out.writeInt(totalChunks);
+        out.writeInt(bitmap.length);
+        out.write(bitmap);
+        out.writeInt(others.size());
+        for (SwarmMember member : others) {
+            Protocol.writeString(out, member.peerId);
+            Protocol.writeString(out, member.ip);
+            out.writeInt(member.port);
+        }
+        out.flush();
+        System.out.println("📋 Sent have-bitmap for " + hash + " (" + haves.cardinality() + "/" + totalChunks
+                + " chunks, " + others.size() + " swarm peers) to " + remotePeerId);
+    }
+
+    private void handleHave(DataInputStream in, DataOutputStream out, String remoteIp) throws IOException {
+        String hash = Protocol.readString(in);
+        String remotePeerId = Protocol.readString(in);
+        int remotePort = in.readInt();
+        int chunkIndex = in.readInt();
+
+        registerSwarmMember(hash, remotePeerId, remoteIp, remotePort);
+        if (downloadManager != null) {
+            downloadManager.onRemoteHave(hash, remotePeerId, chunkIndex);
+            // A peer announcing chunks of a file we are downloading is a new source for us
+            downloadManager.addSource(hash, remotePeerId, remoteIp, remotePort);
+        }
+        out.writeByte(1); // Ack
+        out.flush();
+    }
+
+    // Piece digests of a file we share completely; downloads in progress can't vouch for their pieces
+    private void handlePieceHashes(DataInputStream in, DataOutputStream out) throws IOException {
+        String hash = Protocol.readString(in);
+        FileManager.SharedFile file = fileManager.getFileByHash(hash);
+        if (file == null) {
+            out.writeByte(0);
+            out.flush();
+            return;
+        }
+
+        byte[][] digests;
+        synchronized (pieceHashCache) {
+            digests = pieceHashCache.get(hash);
+        }
+        if (digests == null) {
+            ContentHash.Result result;
+            OpenStorage open = leaseStorage(file);
+            try {
+                result = ContentHash.compute(open.storage, file.size);
+            } finally {
+                release(open);
+            }
+            if (!result.contentId.equals(hash)) {
+                System.err.println("Shared file " + file.name + " changed since it was indexed, not sending piece hashes");
+                out.writeByte(0);
+                out.flush();
+                return;
+            }
+            digests = result.pieceDigests;
+            synchronized (pieceHashCache) {
+                pieceHashCache.put(hash, digests);
+            }
+        }
+
+        // Response: [Status(1)][Count(4)]{[Digest(32)]}
+        out.writeByte(1);
+        out.writeInt(digests.length);
+        for (byte[] digest : digests)
+            out.write(digest);
+        out.flush();
+        System.out.println("📋 Sent " + digests.length + " piece hashes for " + file.name);
+    }
+
+    // Serves catalog pages until the client closes the connection
+    private void handleCatalog(DataInputStream in, DataOutputStream out) throws IOException {
+        FileCatalog catalog = fileManager.getCatalog();
+        while (true) {
+            long peerEpoch;
+            try {
+                peerEpoch = in.readLong();
+            } catch (EOFException e) {
+                return; // Client is done
+            }
+            long sinceVersion = in.readLong();
+            String afterHash = Protocol.readString(in);
+            int maxEntries = Math.min(in.readInt(), Protocol.MAX_CATALOG_PAGE);
+
+            FileCatalog.Page page = catalog.getPage(peerEpoch, sinceVersion, afterHash, maxEntries);
+
+            // Response: [Epoch(8)][Version(8)][Full(1)][HasMore(1)][Count(4)]{[Op(1)][Hash][Name][Size(8)]}
+            out.writeLong(page.epoch);
+            out.writeLong(page.version);
+            out.writeBoolean(page.full);
+            out.writeBoolean(page.hasMore);
+            out.writeInt(page.entries.size());
+            for (FileCatalog.Entry entry : page.entries) {
+                out.writeByte(entry.op);
+                Protocol.writeString(out, entry.hash);
+                Protocol.writeString(out, entry.name);
+                out.writeLong(entry.size);
+            }
+            out.flush();
+            System.out.println("📋 Sent catalog " + (page.full ? "snapshot" : "delta") + " page: "
+                    + page.entries.size() + " entries, version " + page.version);
+        }
+    }
+
+    private void registerSwarmMember(String hash, String peerId, String ip, int port) {
+        if (port <= 0)
+            return; // Peer isn't serving anything
+        Map<String, SwarmMember> members = swarms.computeIfAbsent(hash, k -> new ConcurrentHashMap<>());
+        SwarmMember member = members.get(peerId);
+        if (member == null || !member.ip.equals(ip) || member.port != port) {
+            members.put(peerId, new SwarmMember(peerId, ip, port));
+        } else {
+            member.lastSeen = System.currentTimeMillis();
+        }
+    }
+
+    private List<SwarmMember> swarmSample(String hash, String excludePeerId) {
+        List<SwarmMember> sample = new ArrayList<>();
+        Map<String, SwarmMember> members = swarms.get(hash);
+        if (members == null)
+            return sample;
+
+        long now = System.currentTimeMillis();
+        members.values().removeIf(m -> now - m.lastSeen > SWARM_MEMBER_TIMEOUT_MS);
+        for (SwarmMember member : members.values()) {
+            if (sample.size() >= MAX_SWARM_PEERS)
+                break;
+            if (!member.peerId.equals(excludePeerId))
+                sample.add(member);
+        }
+        return sample;
+    }
+
+    // Reads up to one chunk starting at offset, looping until the buffer is full or EOF
+    private int readChunk(FileManager.SharedFile file, long offset, byte[] buffer) throws IOException {
+        OpenStorage open = leaseStorage(file);
+        try {
+            return open.storage.read(offset, buffer, 0, buffer.length);
+        } finally {
+            release(open);
+        }
+    }
+
+    // Read-only storage for a shared file, kept open across requests; hand it back with release()
+    private OpenStorage leaseStorage(FileManager.SharedFile file) throws IOException {
+        synchronized (openStorages) {
+            OpenStorage open = openStorages.get(file.hash);
+            if (open == null || !file.fileHandle.equals(open.storage.getFile()) || open.storage.size() != file.size) {
+                if (open != null)
+                    retire(open); // Same content now served from another path
+                open = new OpenStorage(PieceStorage.open(serveStorageType, file.fileHandle, file.size, true));
+                openStorages.put(file.hash, open);
+            }
+            open.leases++;
+            return open;
+        }
+    }
+
+    private void release(OpenStorage open) {
+        synchronized (openStorages) {
+            open.leases--;
+            closeIfUnused(open);
+        }
+    }
+
+    // Called with the openStorages lock held
+    private void retire(OpenStorage open) {
+        open.retired = true;
+        closeIfUnused(open);
+    }
+
+    private static void closeIfUnused(OpenStorage open) {
+        if (!open.retired || open.leases > 0)
+            return;
+        try {
+            open.storage.close();
+        } catch (IOException e) {
+            // Ignore, it is being dropped
         }
     }
 }
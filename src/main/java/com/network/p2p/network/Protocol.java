@@ -1,10 +1,71 @@
 package com.network.p2p.network;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
 public class Protocol {
     public static final byte TYPE_HELLO = 0x01;
     public static final byte TYPE_QUERY_FILES = 0x02;
     public static final byte TYPE_RESPONSE_FILES = 0x03;
+    // Response travelling back along the query path: <responderIp>|<original response content>
+    public static final byte TYPE_RELAYED_RESPONSE = 0x04;
 
     // Separator for text fields in payload
     public static final String SEPARATOR = ":";
+
+    // Largest UDP datagram we send or receive, including the [TTL][Type] header
+    public static final int MAX_PACKET_SIZE = 1024;
+    // Room a response must leave for the "<responderIp>|" prefix added by relays (IPv6 worst case)
+    public static final int RELAY_PREFIX_RESERVE = 48;
+
+    // TCP request types (first int written on a FileServer connection)
+    public static final int REQUEST_CHUNK = 0;
+    public static final int REQUEST_LIST_FILES = 1;
+    public static final int REQUEST_HAVE_BITMAP = 2;
+    public static final int REQUEST_HAVE = 3;
+    public static final int REQUEST_PEX = 4;
+    public static final int REQUEST_CATALOG = 5;
+
+    public static final int REQUEST_SESSION = 6;
+    // [Hash] -> [Status(1)][Count(4)]{[Leaf digest of each 256 KB piece (32)]}, for fully shared files;
+    // the leaves must hash up to the content id (ContentHash)
+    public static final int REQUEST_PIECE_HASHES = 7;
+
+    // Framed transfer session (REQUEST_SESSION): after the type, both sides exchange [Version(1)],
+    // then send frames [FrameType(1)][Tag(4)][PayloadLen(4)][Payload] in both directions.
+    // Requests are answered by DATA frames with the same tag, in any order.
+    // Version 2: once version 2 is agreed the client sends [PeerId], and the server may choke it:
+    // CHOKE/UNCHOKE frames announce the state, requests made while choked get DATA status 2.
+    public static final byte SESSION_VERSION = 2;
+    public static final byte FRAME_REQUEST = 1; // [Hash][ChunkIndex(4)][Offset(4)][Length(4)]
+    public static final byte FRAME_DATA = 2; // [Status(1)][Data], status 1 = OK
+    public static final byte FRAME_CANCEL = 3; // Drops the request with this tag, no payload
+    public static final byte FRAME_KEEPALIVE = 4; // Tag 0, no payload
+    public static final byte FRAME_CHOKE = 5; // Tag 0, no payload (version 2)
+    public static final byte FRAME_UNCHOKE = 6; // Tag 0, no payload (version 2)
+    public static final byte DATA_OK = 1;
+    public static final byte DATA_CHOKED = 2; // Not served now, ask again after UNCHOKE
+    public static final int MAX_FRAME_PAYLOAD = 1024 * 1024;
+
+    // Largest catalog page a FileServer sends, whatever the client asks for
+    public static final int MAX_CATALOG_PAGE = 1000;
+
+    // Writes [Len(4)][UTF-8 bytes]
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Reads [Len(4)][UTF-8 bytes]
+    public static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > 64 * 1024)
+            throw new IOException("Invalid string length: " + len);
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 }
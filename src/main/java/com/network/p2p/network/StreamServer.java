@@ -0,0 +1,145 @@
+package com.network.p2p.network;
+
+import com.network.p2p.managers.DownloadManager;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTP server the player reads active downloads from: GET /stream/{hash}/{name} with Range
+ * support. Reads block until the requested chunk has arrived (DownloadManager.readStream), and the
+ * position VLC reads from moves the playhead of watch-only downloads, so a seek turns into a new
+ * Range request and the downloader follows it. Bound to loopback only.
+ */
+public class StreamServer {
+    private static final long READ_TIMEOUT_MS = 30000; // Give up on a stalled chunk, VLC reconnects
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DownloadManager downloadManager;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "StreamServer");
+        t.setDaemon(true);
+        return t;
+    });
+    private HttpServer server;
+
+    public StreamServer(DownloadManager downloadManager) {
+        this.downloadManager = downloadManager;
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null)
+            return;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/stream/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        System.out.println("StreamServer listening on 127.0.0.1:" + getPort());
+    }
+
+    public synchronized int getPort() {
+        return server != null ? server.getAddress().getPort() : 0;
+    }
+
+    /** URL the player should open for a download; the file name lets VLC pick the demuxer. */
+    public String getUrl(String hash, String fileName) {
+        return "http://127.0.0.1:" + getPort() + "/stream/" + hash + "/"
+                + URLEncoder.encode(fileName, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    public synchronized void stop() {
+        if (server == null)
+            return;
+        server.stop(0);
+        server = null;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String[] parts = exchange.getRequestURI().getPath().split("/");
+            String hash = parts.length > 2 ? parts[2] : "";
+            DownloadManager.ActiveDownload download = downloadManager.getDownload(hash);
+            if (download == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            long size = download.fileSize;
+            long start = 0;
+            long end = size - 1;
+            boolean ranged = false;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+                String[] bounds = range.substring(6).split("-", -1);
+                try {
+                    if (bounds[0].isEmpty()) {
+                        start = Math.max(0, size - Long.parseLong(bounds[1])); // Suffix range: last N bytes
+                    } else {
+                        start = Long.parseLong(bounds[0]);
+                        if (!bounds[1].isEmpty())
+                            end = Math.min(end, Long.parseLong(bounds[1]));
+                    }
+                    ranged = true;
+                } catch (NumberFormatException e) {
+                    // Malformed range: serve the whole file
+                }
+            }
+            if (start >= size || start > end) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+
+            long length = end - start + 1;
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("Content-Type", contentType(download.fileName));
+            if (ranged)
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", Long.toString(length));
+                exchange.sendResponseHeaders(ranged ? 206 : 200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(ranged ? 206 : 200, length);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            OutputStream out = exchange.getResponseBody();
+            long position = start;
+            while (position <= end) {
+                int n = downloadManager.readStream(hash, position, buffer, (int) Math.min(buffer.length, end - position + 1), READ_TIMEOUT_MS);
+                if (n <= 0) {
+                    System.out.println("DEBUG StreamServer: No data at " + position + " for " + download.fileName + ", closing");
+                    break; // Short response; the player reconnects with a new range
+                }
+                out.write(buffer, 0, n);
+                position += n;
+            }
+        } catch (IOException e) {
+            // Player closed the connection (seek or stop)
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String contentType(String fileName) {
+        String name = fileName.toLowerCase();
+        if (name.endsWith(".mp4") || name.endsWith(".m4v"))
+            return "video/mp4";
+        if (name.endsWith(".mkv"))
+            return "video/x-matroska";
+        if (name.endsWith(".webm"))
+            return "video/webm";
+        if (name.endsWith(".avi"))
+            return "video/x-msvideo";
+        return "application/octet-stream";
+    }
+}
@@ -0,0 +1,232 @@
+package com.network.p2p.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client side of a framed transfer session with one peer's FileServer (Protocol.REQUEST_SESSION).
+ * Many chunk requests share one connection; each gets a tag, answers may arrive out of order,
+ * and requests that are no longer needed can be cancelled so the peer stops sending them.
+ * The peer may choke us (no free upload slot); requests it refuses complete with choked set.
+ */
+public class TransferSession implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final long KEEPALIVE_INTERVAL_MS = 15000;
+
+    private static final ScheduledExecutorService keepaliveScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "TransferSession-Keepalive");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // A request in flight; result completes with the data, or null if the peer doesn't have it
+    // (or refused it because we are choked)
+    public static class Request {
+        public final int tag;
+        public final int chunkIndex;
+        public final int offset;
+        public final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        public volatile boolean choked = false;
+
+        Request(int tag, int chunkIndex, int offset) {
+            this.tag = tag;
+            this.chunkIndex = chunkIndex;
+            this.offset = offset;
+        }
+    }
+
+    private final String peerAddress;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Map<Integer, Request> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTag = new AtomicInteger(1);
+    private final ScheduledFuture<?> keepalive;
+    private volatile long lastSent = System.currentTimeMillis();
+    private volatile boolean closed = false;
+    private volatile boolean choked = false; // Version 1 peers never choke
+
+    private TransferSession(String ip, int port, String localPeerId) throws IOException {
+        this.peerAddress = ip + ":" + port;
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            // Handshake: [Type(4)][Version(1)] -> [Version(1)]; peers without sessions time out here
+            out.writeInt(Protocol.REQUEST_SESSION);
+            out.writeByte(Protocol.SESSION_VERSION);
+            out.flush();
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            byte version = in.readByte();
+            if (version < 1 || version > Protocol.SESSION_VERSION)
+                throw new IOException("Unsupported session version " + version);
+            if (version >= 2) {
+                // Tells the peer who we are, so what we upload to it counts for our upload slot there
+                Protocol.writeString(out, localPeerId != null ? localPeerId : "");
+                out.flush();
+            }
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        Thread reader = new Thread(this::readLoop, "TransferSession-" + peerAddress);
+        reader.setDaemon(true);
+        reader.start();
+        keepalive = keepaliveScheduler.scheduleWithFixedDelay(this::sendKeepaliveIfIdle,
+                KEEPALIVE_INTERVAL_MS, KEEPALIVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static TransferSession open(String ip, int port, String localPeerId) throws IOException {
+        return new TransferSession(ip, port, localPeerId);
+    }
+
+    /**
+     * Requests bytes [offset, offset + length) of a chunk; the peer clamps the range to the chunk.
+     */
+    public Request request(String hash, int chunkIndex, int offset, int length) throws IOException {
+        Request request = new Request(nextTag.getAndIncrement(), chunkIndex, offset);
+        pending.put(request.tag, request);
+        try {
+            synchronized (out) {
+                byte[] hashBytes = hash.getBytes(StandardCharsets.UTF_8);
+                writeHeader(Protocol.FRAME_REQUEST, request.tag, 4 + hashBytes.length + 12);
+                out.writeInt(hashBytes.length);
+                out.write(hashBytes);
+                out.writeInt(chunkIndex);
+                out.writeInt(offset);
+                out.writeInt(length);
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(request.tag);
+            close();
+            throw e;
+        }
+        return request;
+    }
+
+    /** Tells the peer to drop a request; its result future is cancelled. */
+    public void cancel(Request request) {
+        if (pending.remove(request.tag) == null)
+            return; // Already answered
+        request.result.cancel(false);
+        try {
+            synchronized (out) {
+                writeHeader(Protocol.FRAME_CANCEL, request.tag, 0);
+                out.flush();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /** True while the peer has no upload slot for us; requests would be refused. */
+    public boolean isChoked() {
+        return choked;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        keepalive.cancel(false);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore, closing anyway
+        }
+        IOException failure = new IOException("Session with " + peerAddress + " closed");
+        for (Request request : pending.values())
+            request.result.completeExceptionally(failure);
+        pending.clear();
+    }
+
+    private void writeHeader(byte frameType, int tag, int payloadLength) throws IOException {
+        out.writeByte(frameType);
+        out.writeInt(tag);
+        out.writeInt(payloadLength);
+        lastSent = System.currentTimeMillis();
+    }
+
+    private void sendKeepaliveIfIdle() {
+        if (closed || System.currentTimeMillis() - lastSent < KEEPALIVE_INTERVAL_MS)
+            return;
+        try {
+            synchronized (out) {
+                writeHeader(Protocol.FRAME_KEEPALIVE, 0, 0);
+                out.flush();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                byte frameType = in.readByte();
+                int tag = in.readInt();
+                int length = in.readInt();
+                if (length < 0 || length > Protocol.MAX_FRAME_PAYLOAD)
+                    throw new IOException("Invalid frame length: " + length);
+
+                if (frameType == Protocol.FRAME_CHOKE || frameType == Protocol.FRAME_UNCHOKE) {
+                    choked = frameType == Protocol.FRAME_CHOKE;
+                    System.out.println("DEBUG TransferSession[" + peerAddress + "]: " + (choked ? "Choked" : "Unchoked"));
+                }
+                if (frameType != Protocol.FRAME_DATA) {
+                    in.readFully(new byte[length]); // Keepalive, choke state or unknown frame
+                    continue;
+                }
+                byte status = length > 0 ? in.readByte() : 0;
+                byte[] data = null;
+                if (status == Protocol.DATA_OK) {
+                    data = new byte[length - 1];
+                    in.readFully(data);
+                } else if (length > 1) {
+                    in.readFully(new byte[length - 1]);
+                }
+
+                Request request = pending.remove(tag);
+                if (request != null) {
+                    request.choked = status == Protocol.DATA_CHOKED;
+                    request.result.complete(data); // Unknown tags were cancelled, drop them
+                }
+            }
+        } catch (IOException e) {
+            if (!closed)
+                System.err.println("DEBUG TransferSession[" + peerAddress + "]: " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.network.p2p.network;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * BitTorrent-style upload slots for FileServer. Only a few peers are unchoked (served) at a time:
+ * every RECHOKE_INTERVAL_MS the ones we download fastest from get the regular slots, so peers that
+ * upload back are rewarded (peers we don't download from are ranked by how fast they take our
+ * uploads, like a seed does). One more slot goes to a random interested peer every few rounds
+ * (optimistic unchoke), newcomers weighted higher, so new peers get a first piece to trade with and
+ * better partners get discovered. Choked peers' requests are refused until their next unchoke.
+ */
+public class UploadChoker {
+    private static final int DEFAULT_UPLOAD_SLOTS = 4;
+    private static final long RECHOKE_INTERVAL_MS = 10000;
+    private static final int OPTIMISTIC_ROUNDS = 3; // The optimistic unchoke rotates every 30 s
+    private static final long NEWCOMER_MS = 60000; // Peers seen for less than this are 3x as likely to be picked
+    private static final int NEWCOMER_WEIGHT = 3;
+    private static final long ONE_SHOT_IDLE_MS = 60000; // Peers without a session are forgotten after this long without a request
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "UploadChoker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Told when its peer gets choked or unchoked (sessions forward it to the client). */
+    public interface ChokeListener {
+        void onChokeChanged(boolean choked);
+    }
+
+    // Stands in for the sessions of peers that only send one-shot chunk requests (they can't be told)
+    private static final ChokeListener ONE_SHOT = choked -> { };
+
+    private static class PeerState {
+        final long firstSeen = System.currentTimeMillis();
+        final Set<ChokeListener> sessions = ConcurrentHashMap.newKeySet();
+        boolean choked = true;
+        long lastOneShot = 0; // Last one-shot request, 0 if it never sent one
+        long uploaded = 0; // Bytes we sent it
+        long lastUploaded = 0;
+        long lastReceived = -1; // Bytes we got from it at the previous round
+        double uploadRate = 0;
+        double downloadRate = 0; // What it gives back
+    }
+
+    private final int slots;
+    private final ToLongFunction<String> bytesReceivedFrom;
+    private final Map<String, PeerState> peers = new HashMap<>(); // Peer key -> state
+    private final Random random = new Random();
+    private String optimistic; // Peer holding the optimistic slot
+    private int round = 0;
+    private long lastRound = System.currentTimeMillis();
+    private ScheduledFuture<?> ticker;
+
+    /**
+     * @param slots peers unchoked at once, including the optimistic one
+     * @param bytesReceivedFrom total bytes we have downloaded from a peer so far
+     */
+    public UploadChoker(int slots, ToLongFunction<String> bytesReceivedFrom) {
+        this.slots = Math.max(2, slots);
+        this.bytesReceivedFrom = bytesReceivedFrom;
+    }
+
+    /** Upload slots from UPLOAD_SLOTS (default 4), or 0 when choking is turned off (UPLOAD_SLOTS=0). */
+    public static int slotsFromEnvironment() {
+        String env = System.getenv("UPLOAD_SLOTS");
+        if (env == null || env.trim().isEmpty())
+            return DEFAULT_UPLOAD_SLOTS;
+        try {
+            return Math.max(0, Integer.parseInt(env.trim()));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid UPLOAD_SLOTS value: " + env + ", using " + DEFAULT_UPLOAD_SLOTS);
+            return DEFAULT_UPLOAD_SLOTS;
+        }
+    }
+
+    public synchronized void start() {
+        if (ticker == null)
+            ticker = scheduler.scheduleWithFixedDelay(this::rechoke, RECHOKE_INTERVAL_MS, RECHOKE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (ticker != null)
+            ticker.cancel(false);
+        ticker = null;
+    }
+
+    /**
+     * A session from this peer was opened, i.e. it is interested in our data. It is unchoked right
+     * away if a slot is free; the listener is told the initial state either way.
+     */
+    public void register(String peerKey, ChokeListener session) {
+        boolean choked;
+        synchronized (this) {
+            PeerState peer = peers.computeIfAbsent(peerKey, k -> new PeerState());
+            peer.sessions.add(session);
+            if (peer.choked && unchokedCount() < slots) {
+                peer.choked = false;
+                System.out.println("DEBUG UploadChoker: Unchoked " + peerKey + " (free slot)");
+            }
+            choked = peer.choked;
+        }
+        session.onChokeChanged(choked);
+    }
+
+    public void unregister(String peerKey, ChokeListener session) {
+        PeerState next = null;
+        synchronized (this) {
+            PeerState peer = peers.get(peerKey);
+            if (peer == null)
+                return;
+            peer.sessions.remove(session);
+            if (!peer.sessions.isEmpty())
+                return;
+            peers.remove(peerKey); // No longer interested
+            if (peerKey.equals(optimistic))
+                optimistic = null;
+            // Hand its slot to a waiting peer now rather than at the next round
+            String key = peer.choked ? null : pickOptimistic(new ArrayList<>(), System.currentTimeMillis());
+            if (key != null) {
+                next = peers.get(key);
+                next.choked = false;
+                System.out.println("DEBUG UploadChoker: Unchoked " + key + " (slot of " + peerKey + " freed)");
+            }
+        }
+        if (next != null) {
+            for (ChokeListener waiting : next.sessions)
+                waiting.onChokeChanged(false);
+        }
+    }
+
+    /**
+     * A one-shot chunk request (no session) from this peer. The peer stays registered between its
+     * requests, so it is ranked and can win the optimistic slot like session peers, until it has
+     * been quiet for ONE_SHOT_IDLE_MS. Takes a free slot right away, like register().
+     * @return true if the request should be refused because the peer is choked
+     */
+    public synchronized boolean oneShotRequest(String peerKey) {
+        PeerState peer = peers.computeIfAbsent(peerKey, k -> new PeerState());
+        peer.sessions.add(ONE_SHOT);
+        peer.lastOneShot = System.currentTimeMillis();
+        if (peer.choked && unchokedCount() < slots) {
+            peer.choked = false;
+            System.out.println("DEBUG UploadChoker: Unchoked " + peerKey + " (free slot)");
+        }
+        return peer.choked;
+    }
+
+    public synchronized boolean isChoked(String peerKey) {
+        PeerState peer = peers.get(peerKey);
+        return peer == null || peer.choked;
+    }
+
+    public synchronized void onUploaded(String peerKey, int bytes) {
+        PeerState peer = peers.get(peerKey);
+        if (peer != null)
+            peer.uploaded += bytes;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    private int unchokedCount() {
+        int count = 0;
+        for (PeerState peer : peers.values()) {
+            if (!peer.choked)
+                count++;
+        }
+        return count;
+    }
+
+    // Picks who gets served for the next round and tells the sessions whose state changed
+    private void rechoke() {
+        Map<ChokeListener, Boolean> changes = new HashMap<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            double seconds = Math.max(1, now - lastRound) / 1000.0;
+            lastRound = now;
+            // One-shot peers that stopped asking are no longer interested; their slots are refilled below
+            for (PeerState peer : peers.values()) {
+                if (peer.lastOneShot > 0 && now - peer.lastOneShot > ONE_SHOT_IDLE_MS)
+                    peer.sessions.remove(ONE_SHOT);
+            }
+            peers.values().removeIf(peer -> peer.sessions.isEmpty());
+            if (optimistic != null && !peers.containsKey(optimistic))
+                optimistic = null;
+            for (Map.Entry<String, PeerState> entry : peers.entrySet()) {
+                PeerState peer = entry.getValue();
+                long received = bytesReceivedFrom.applyAsLong(entry.getKey());
+                peer.downloadRate = peer.lastReceived < 0 ? 0 : (received - peer.lastReceived) / seconds;
+                peer.lastReceived = received;
+                peer.uploadRate = (peer.uploaded - peer.lastUploaded) / seconds;
+                peer.lastUploaded = peer.uploaded;
+            }
+
+            // Regular slots: best reciprocal download rate, then fastest takers of our uploads
+            List<String> ranked = new ArrayList<>(peers.keySet());
+            ranked.sort((a, b) -> {
+                PeerState pa = peers.get(a), pb = peers.get(b);
+                int byDownload = Double.compare(pb.downloadRate, pa.downloadRate);
+                return byDownload != 0 ? byDownload : Double.compare(pb.uploadRate, pa.uploadRate);
+            });
+            List<String> unchoke = new ArrayList<>(ranked.subList(0, Math.min(slots - 1, ranked.size())));
+
+            // Optimistic slot: keep it for a few rounds, then hand it to a random choked peer
+            if (optimistic == null || !peers.containsKey(optimistic) || round % OPTIMISTIC_ROUNDS == 0)
+                optimistic = pickOptimistic(unchoke, now);
+            if (optimistic != null && !unchoke.contains(optimistic))
+                unchoke.add(optimistic);
+            // Slots nobody else wants stay useful: fill them in rank order
+            for (String key : ranked) {
+                if (unchoke.size() >= slots)
+                    break;
+                if (!unchoke.contains(key))
+                    unchoke.add(key);
+            }
+            round++;
+
+            for (Map.Entry<String, PeerState> entry : peers.entrySet()) {
+                PeerState peer = entry.getValue();
+                boolean choked = !unchoke.contains(entry.getKey());
+                if (choked == peer.choked)
+                    continue;
+                peer.choked = choked;
+                for (ChokeListener session : peer.sessions)
+                    changes.put(session, choked);
+                System.out.println("DEBUG UploadChoker: " + (choked ? "Choked " : "Unchoked ") + entry.getKey()
+                        + String.format(" (gives us %.0f KB/s, takes %.0f KB/s)", peer.downloadRate / 1024, peer.uploadRate / 1024)
+                        + (entry.getKey().equals(optimistic) ? " [optimistic]" : ""));
+            }
+        }
+        // Outside our lock: sessions write a frame to their socket
+        for (Map.Entry<ChokeListener, Boolean> change : changes.entrySet())
+            change.getKey().onChokeChanged(change.getValue());
+    }
+
+    private String pickOptimistic(List<String> regular, long now) {
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, PeerState> entry : peers.entrySet()) {
+            if (regular.contains(entry.getKey()) || !entry.getValue().choked)
+                continue; // Rotate to someone who isn't being served yet
+            int weight = now - entry.getValue().firstSeen < NEWCOMER_MS ? NEWCOMER_WEIGHT : 1;
+            for (int i = 0; i < weight; i++)
+                candidates.add(entry.getKey());
+        }
+        return candidates.isEmpty() ? null : candidates.get(random.nextInt(candidates.size()));
+    }
+}
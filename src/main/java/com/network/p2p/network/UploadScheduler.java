@@ -0,0 +1,289 @@
+package com.network.p2p.network;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Weighted fair queuing for FileServer's outbound chunk data. Every send asks for a turn under its
+ * flow (peer, file) and is stamped with a virtual finish time (self-clocked fair queuing): the
+ * flow's previous finish, or the current virtual time if it was idle, plus bytes / weight. Turns
+ * are granted smallest stamp first, a few at a time, so under contention each peer gets a share of
+ * the upload proportional to its weight however many connections and requests it opens, and a
+ * peer's share is split between its files by their weights. An optional total cap paces the grants
+ * on top of that, so the node never uploads faster than UPLOAD_RATE_KBPS in total.
+ *
+ * The scheduler only hands out turns; each connection does its own write on its own thread. A turn
+ * whose write hasn't finished after SLOT_HOLD_MS stops counting against the concurrent turns, so
+ * peers that stopped reading can't starve everyone else, and after WRITE_TIMEOUT_MS its connection
+ * is dropped.
+ */
+public class UploadScheduler {
+    private static final int DEFAULT_CONCURRENT_TURNS = 8;
+    private static final long SLOT_HOLD_MS = 2000;
+    private static final long WRITE_TIMEOUT_MS = 30000;
+    private static final long FLOW_IDLE_MS = 60000; // Idle flows are forgotten after this even if ahead of the virtual time
+    private static final long WATCHDOG_INTERVAL_MS = 500;
+    private static final long CAP_SLACK_NANOS = 50_000_000; // Late wake-ups up to this are made up, so the cap is reached
+
+    /** A send's place in the schedule; once granted, the caller writes and then calls done(). */
+    public static class Turn implements Comparable<Turn> {
+        final String peerKey;
+        final String fileKey;
+        final int bytes;
+        final Runnable onStalled;
+        final double finish;
+        final long seq; // Keeps equal stamps in arrival order
+        boolean granted = false;
+        boolean holdingSlot = false;
+        boolean finished = false;
+        long grantedAt;
+
+        Turn(String peerKey, String fileKey, int bytes, Runnable onStalled, double finish, long seq) {
+            this.peerKey = peerKey;
+            this.fileKey = fileKey;
+            this.bytes = bytes;
+            this.onStalled = onStalled;
+            this.finish = finish;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Turn other) {
+            int byFinish = Double.compare(finish, other.finish);
+            return byFinish != 0 ? byFinish : Long.compare(seq, other.seq);
+        }
+    }
+
+    // Per (peer, file) flow: last finish stamp and how many sends are waiting
+    private static class Flow {
+        double lastFinish = 0;
+        int queued = 0;
+        long idleSince = 0;
+    }
+
+    private final PriorityQueue<Turn> queue = new PriorityQueue<>();
+    private final Set<Turn> active = new LinkedHashSet<>(); // Granted turns whose write hasn't finished
+    private final Map<String, Flow> flows = new HashMap<>(); // "peer\nfile" -> flow
+    private final Map<String, Integer> activeFlowsPerPeer = new HashMap<>(); // Flows with queued sends
+    private final Map<String, Double> peerWeights = new HashMap<>();
+    private final Map<String, Double> fileWeights = new HashMap<>();
+    private final int concurrentTurns;
+    private final long rateLimit; // Bytes/s in total, 0 = unlimited
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "UploadScheduler-Watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+    private double virtualTime = 0;
+    private long seq = 0;
+    private int slotsInUse = 0;
+    private long nextGrantNanos = System.nanoTime(); // Earliest next grant under the cap
+    private volatile boolean running = true;
+
+    public UploadScheduler(int concurrentTurns, long rateLimitBytesPerSecond) {
+        this.concurrentTurns = Math.max(1, concurrentTurns);
+        this.rateLimit = Math.max(0, rateLimitBytesPerSecond);
+        Thread dispatcher = new Thread(this::dispatchLoop, "UploadScheduler");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        watchdog.scheduleWithFixedDelay(this::checkStalled, WATCHDOG_INTERVAL_MS, WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Scheduler from UPLOAD_RATE_KBPS (total cap, unset or 0 = unlimited), UPLOAD_PEER_WEIGHTS and
+     * UPLOAD_FILE_WEIGHTS ("key=weight,..." by peer id and file hash, default weight 1).
+     */
+    public static UploadScheduler fromEnvironment() {
+        long rate = 0;
+        String envRate = System.getenv("UPLOAD_RATE_KBPS");
+        if (envRate != null && !envRate.trim().isEmpty()) {
+            try {
+                rate = Math.max(0, Long.parseLong(envRate.trim())) * 1024;
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid UPLOAD_RATE_KBPS value: " + envRate + ", uploading without a cap");
+            }
+        }
+        UploadScheduler scheduler = new UploadScheduler(DEFAULT_CONCURRENT_TURNS, rate);
+        parseWeights(System.getenv("UPLOAD_PEER_WEIGHTS"), scheduler.peerWeights);
+        parseWeights(System.getenv("UPLOAD_FILE_WEIGHTS"), scheduler.fileWeights);
+        if (rate > 0 || !scheduler.peerWeights.isEmpty() || !scheduler.fileWeights.isEmpty())
+            System.out.println("UploadScheduler: cap " + (rate > 0 ? (rate / 1024) + " KB/s" : "none") + ", peer weights "
+                    + scheduler.peerWeights + ", file weights " + scheduler.fileWeights);
+        return scheduler;
+    }
+
+    private static void parseWeights(String env, Map<String, Double> weights) {
+        if (env == null)
+            return;
+        for (String entry : env.split(",")) {
+            int eq = entry.lastIndexOf('=');
+            if (eq <= 0)
+                continue;
+            try {
+                double weight = Double.parseDouble(entry.substring(eq + 1).trim());
+                if (weight > 0)
+                    weights.put(entry.substring(0, eq).trim(), weight);
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid upload weight: " + entry);
+            }
+        }
+    }
+
+    public synchronized void setPeerWeight(String peerKey, double weight) {
+        peerWeights.put(peerKey, weight);
+    }
+
+    public synchronized void setFileWeight(String fileKey, double weight) {
+        fileWeights.put(fileKey, weight);
+    }
+
+    /**
+     * Waits for this flow's turn to send about the given number of bytes. The caller then writes on
+     * its own thread and must call done() with what it actually sent, which is what the rate cap is
+     * charged. onStalled runs if the write hasn't finished after WRITE_TIMEOUT_MS and should drop
+     * the connection (e.g. close its socket) so the write fails.
+     */
+    public synchronized Turn acquire(String peerKey, String fileKey, int bytes, Runnable onStalled) throws InterruptedException {
+        String flowKey = peerKey + "\n" + fileKey;
+        Flow flow = flows.computeIfAbsent(flowKey, k -> new Flow());
+        if (flow.queued++ == 0)
+            activeFlowsPerPeer.merge(peerKey, 1, Integer::sum);
+
+        // The peer's weight is shared by the files it is downloading from us right now
+        double weight = peerWeights.getOrDefault(peerKey, 1.0) * fileWeights.getOrDefault(fileKey, 1.0)
+                / activeFlowsPerPeer.get(peerKey);
+        double finish = Math.max(virtualTime, flow.lastFinish) + Math.max(1, bytes) / weight;
+        flow.lastFinish = finish;
+        Turn turn = new Turn(peerKey, fileKey, bytes, onStalled, finish, seq++);
+        queue.add(turn);
+        notifyAll();
+
+        try {
+            while (!turn.granted) {
+                if (!running)
+                    throw new InterruptedException("Upload scheduler stopped");
+                wait();
+            }
+        } catch (InterruptedException e) {
+            if (queue.remove(turn))
+                dequeued(turn);
+            else if (turn.granted)
+                finish(turn, 0);
+            throw e;
+        }
+        return turn;
+    }
+
+    /** Ends a granted turn; sent is the payload actually written (0 if the write failed). */
+    public synchronized void done(Turn turn, int sent) {
+        finish(turn, sent);
+    }
+
+    public void stop() {
+        running = false;
+        watchdog.shutdownNow();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void finish(Turn turn, int sent) {
+        if (turn.finished)
+            return;
+        turn.finished = true;
+        active.remove(turn);
+        releaseSlot(turn);
+        if (rateLimit > 0 && sent != turn.bytes)
+            nextGrantNanos += (long) (sent - turn.bytes) * 1_000_000_000L / rateLimit; // Charge what was really sent
+    }
+
+    private void releaseSlot(Turn turn) {
+        if (turn.holdingSlot) {
+            turn.holdingSlot = false;
+            slotsInUse--;
+            notifyAll();
+        }
+    }
+
+    // Flow bookkeeping once a turn leaves the queue
+    private void dequeued(Turn turn) {
+        String flowKey = turn.peerKey + "\n" + turn.fileKey;
+        Flow flow = flows.get(flowKey);
+        if (--flow.queued == 0) {
+            activeFlowsPerPeer.merge(turn.peerKey, -1, Integer::sum);
+            activeFlowsPerPeer.remove(turn.peerKey, 0);
+            flow.idleSince = System.currentTimeMillis();
+            if (flow.lastFinish <= virtualTime)
+                flows.remove(flowKey); // Idle and caught up, it restarts at the virtual time anyway
+        }
+    }
+
+    // Grants turns smallest stamp first while a slot is free and the cap allows
+    private synchronized void dispatchLoop() {
+        try {
+            while (running) {
+                if (queue.isEmpty() || slotsInUse >= concurrentTurns) {
+                    wait();
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (rateLimit > 0 && nextGrantNanos > now) {
+                    TimeUnit.NANOSECONDS.timedWait(this, nextGrantNanos - now);
+                    continue;
+                }
+                Turn turn = queue.poll();
+                virtualTime = turn.finish;
+                dequeued(turn);
+                // Reserve this send's share of the cap; corrected in finish() by what was really sent
+                if (rateLimit > 0)
+                    nextGrantNanos = Math.max(now - CAP_SLACK_NANOS, nextGrantNanos) + turn.bytes * 1_000_000_000L / rateLimit;
+                turn.granted = true;
+                turn.holdingSlot = true;
+                turn.grantedAt = System.currentTimeMillis();
+                slotsInUse++;
+                active.add(turn);
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    // Frees the slots of slow writes, drops connections that don't drain and forgets idle flows
+    private void checkStalled() {
+        List<Turn> stalled = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Turn> it = active.iterator();
+            while (it.hasNext()) {
+                Turn turn = it.next();
+                if (now - turn.grantedAt > SLOT_HOLD_MS)
+                    releaseSlot(turn);
+                if (now - turn.grantedAt > WRITE_TIMEOUT_MS) {
+                    it.remove();
+                    stalled.add(turn);
+                }
+            }
+            flows.values().removeIf(flow -> flow.queued == 0
+                    && (flow.lastFinish <= virtualTime || now - flow.idleSince > FLOW_IDLE_MS));
+        }
+        // Outside our lock: closing a socket may take a moment
+        for (Turn turn : stalled) {
+            System.err.println("UploadScheduler: write to " + turn.peerKey + " stalled for " + WRITE_TIMEOUT_MS / 1000 + " s, dropping it");
+            try {
+                turn.onStalled.run();
+            } catch (RuntimeException e) {
+                System.err.println("UploadScheduler: dropping stalled send failed: " + e.getMessage());
+            }
+        }
+    }
+}